@@ -0,0 +1,128 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the corpus in the background once editing pauses.
+ * <p>
+ * Each edit is reported with {@link #editActivity()}. A save is queued when no edit has been reported
+ * for the idle period, or when the oldest unsaved edit reaches the maximum dirty age, whichever comes first;
+ * the age limit keeps continuous typing from postponing the save indefinitely.
+ * A burst of edits therefore results in a single write.
+ * <p>
+ * The counters report how many edits were folded into another edit's write, and how many writes were made;
+ * with {@link #STATS_PROPERTY} set they are printed to standard error on exit.
+ */
+class AutosaveScheduler {
+
+	/** System property giving the idle period in milliseconds after which edits are saved; unset or 0 disables autosave. */
+	public static final String IDLE_PROPERTY = "posteditor.autosaveIdle";
+
+	/** System property giving the longest time in milliseconds that an edit may remain unsaved while editing continues. */
+	public static final String MAX_DIRTY_AGE_PROPERTY = "posteditor.autosaveMaxAge";
+
+	/** System property that, when "true", prints the counters to standard error when the program exits. */
+	public static final String STATS_PROPERTY = "posteditor.autosaveStats";
+
+	private static final long DEFAULT_MAX_DIRTY_AGE = 30000;
+
+	private final Corpus corpus;
+	private final long idleNanos;
+	private final long maxDirtyAgeNanos;
+	private final ScheduledExecutorService timer;
+
+	private long lastEdit;
+	/** Time of the oldest edit not yet handed to a save, or 0 if there is none. */
+	private long firstEdit;
+	private boolean scheduled;
+
+	private long edits;
+	private long writes;
+
+	AutosaveScheduler(Corpus corpus, long idleMillis, long maxDirtyAgeMillis) {
+		this.corpus = corpus;
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+		this.maxDirtyAgeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(idleMillis, maxDirtyAgeMillis));
+		this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Autosave");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/** Returns a scheduler configured from the system properties, or null if autosave is disabled. */
+	static AutosaveScheduler fromProperties(Corpus corpus) {
+		long idle = Long.getLong(IDLE_PROPERTY, 0);
+		if (idle <= 0) {
+			return null;
+		}
+		final AutosaveScheduler scheduler = new AutosaveScheduler(corpus, idle, Long.getLong(MAX_DIRTY_AGE_PROPERTY, DEFAULT_MAX_DIRTY_AGE));
+		if (Boolean.getBoolean(STATS_PROPERTY)) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					System.err.println(scheduler);
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	/** Called for every change to a post-edit. Only records the time; the save is decided on the timer thread. */
+	synchronized void editActivity() {
+		long now = System.nanoTime();
+		lastEdit = now;
+		if (firstEdit == 0) {
+			firstEdit = now;
+		}
+		edits += 1;
+		if (!scheduled) {
+			scheduled = true;
+			schedule(idleNanos);
+		}
+	}
+
+	private void schedule(long delayNanos) {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private synchronized void check() {
+		long now = System.nanoTime();
+		long idleRemaining = lastEdit + idleNanos - now;
+		long ageRemaining = firstEdit + maxDirtyAgeNanos - now;
+		if (idleRemaining > 0 && ageRemaining > 0) {
+			schedule(Math.min(idleRemaining, ageRemaining));
+			return;
+		}
+		scheduled = false;
+		firstEdit = 0;
+		if (corpus.isDirty()) {
+			writes += 1;
+			corpus.saveInBackground();
+		}
+	}
+
+	/** Edits whose changes were saved by a write made for another edit, or by a save made elsewhere. */
+	synchronized long getWritesAvoided() {
+		return edits - writes;
+	}
+
+	/** Writes requested by this scheduler. */
+	synchronized long getWritesPerformed() {
+		return writes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Autosave: " + edits + " edits, " + getWritesPerformed() + " writes, " + getWritesAvoided() + " writes avoided";
+	}
+
+}
@@ -0,0 +1,25 @@
+import java.io.IOException;
+
+/**
+ * Command-line tool that compiles the source, MT and alignment files into a {@link CorpusBundle},
+ * which <code>PostEditor</code> can then open without parsing any text.
+ */
+public class BundleConverter {
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length==5) {
+
+			long start = System.currentTimeMillis();
+			Corpus corpus = Corpus.open(args[0], args[1], args[2], args[3]);
+			CorpusBundle.write(corpus, args[4]);
+			System.err.println("Wrote " + corpus.size() + " documents to " + args[4] + " in " + (System.currentTimeMillis() - start) + " ms");
+
+		} else {
+
+			System.err.println("Usage: BundleConverter postEdit.txt source.txt mtOutput.txt alignments.txt corpus.bundle");
+
+		}
+	}
+
+}
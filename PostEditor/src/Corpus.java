@@ -0,0 +1,922 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+
+import util.LineTokenizer;
+import util.MappedLineReader;
+import util.Vocabulary;
+
+/**
+ * All documents of a corpus, backed by a {@link CorpusIndex}.
+ * <p>
+ * Documents are parsed the first time their sentences are needed.
+ * The most recently used documents are kept in memory (see {@link #CACHED_DOCUMENTS_PROPERTY});
+ * older ones are only softly reachable and are reparsed if the garbage collector reclaims them.
+ * Documents with unsaved edits are never evicted.
+ * <p>
+ * Alternatively, {@link #parseAll(int)} parses every document up front on a fork/join pool
+ * and keeps them all in memory.
+ * <p>
+ * The source, MT and alignments are read either from the original text files ({@link #open})
+ * or from a precompiled {@link CorpusBundle} ({@link #openBundle}).
+ * <p>
+ * When the index has to be rebuilt, {@link #openProgressively} and {@link #openBundleProgressively}
+ * return as soon as the requested document has been indexed and index the rest on a background thread.
+ * Until then {@link #size()} counts only the documents found so far, and {@link #awaitDocument(int)}
+ * waits for a document that has not been reached yet.
+ */
+public class Corpus extends AbstractList<TranslatedDocument> {
+
+	/** System property giving the number of parsed documents held in memory. */
+	public static final String CACHED_DOCUMENTS_PROPERTY = "posteditor.cachedDocuments";
+
+	/** System property giving the number of threads used to parse the whole corpus at startup; unset or 0 means parse lazily. */
+	public static final String PARALLELISM_PROPERTY = "posteditor.parallelism";
+
+	/** System property that, when "true", shows the first document before the whole corpus has been indexed. */
+	public static final String PROGRESSIVE_PROPERTY = "posteditor.progressive";
+
+	/** System property that, when "true", records every edit in an {@link EditJournal} next to the post-edit file. */
+	public static final String JOURNAL_PROPERTY = "posteditor.journal";
+
+	/**
+	 * System property that, when "true", saves each edited document to its own file in a {@link SegmentStore}
+	 * instead of rewriting the flat post-edit file.
+	 */
+	public static final String SEGMENTS_PROPERTY = "posteditor.segments";
+
+	/** Parse tasks are not split below this many sentences. */
+	private static final int SENTENCES_PER_TASK = 2048;
+
+	private static final int DEFAULT_CACHED_DOCUMENTS = 16;
+
+	/** A journal generation this large is folded into the post-edit file by a save. */
+	private static final long COMPACT_JOURNAL_BYTES = 1 << 20;
+
+	private static final byte[] NEWLINE = System.getProperty("line.separator").getBytes();
+
+	private final String[] paths;
+	private final String indexPath;
+
+	private CorpusIndex index;
+	private final CorpusBundle bundle;
+	private final MappedLineReader[] readers;
+	private final LineTokenizer tokenizer;
+
+	private TranslatedDocument[] documents;
+
+	private final Vocabulary sourceVocabulary;
+	private final Vocabulary targetVocabulary;
+
+	private final Map<Integer,List<ParallelSentence>> recentlyUsed;
+	private final Map<Integer,List<ParallelSentence>> modified;
+	private final BitSet dirtyDocuments;
+	private List<List<ParallelSentence>> resident;
+
+	private volatile boolean loading;
+	private final List<Runnable> loadedListeners;
+
+	/** Set while {@link #parseAll(int)} parses without the lock, so that saved documents stay pinned until it merges. */
+	private boolean parsing;
+
+	private final ExecutorService writer;
+	private FutureTask<Boolean> queuedSave;
+
+	private volatile EditJournal journal;
+
+	private final SegmentStore segments;
+	private final boolean segmented;
+	private boolean mergeRequested;
+
+	private Corpus(String[] paths, String indexPath, CorpusIndex index, CorpusBundle bundle, final int cachedDocuments) throws IOException {
+		this.paths = paths;
+		this.indexPath = indexPath;
+		this.index = index;
+		this.bundle = bundle;
+		this.readers = new MappedLineReader[CorpusIndex.FILES];
+		readers[CorpusIndex.POST_EDIT] = new MappedLineReader(paths[CorpusIndex.POST_EDIT]);
+		if (bundle == null) {
+			for (int i=1; i<CorpusIndex.FILES; i+=1) {
+				readers[i] = new MappedLineReader(paths[i]);
+			}
+		}
+		this.tokenizer = new LineTokenizer();
+		this.segments = new SegmentStore(paths[CorpusIndex.POST_EDIT]);
+		this.segmented = Boolean.getBoolean(SEGMENTS_PROPERTY);
+		this.documents = new TranslatedDocument[index.documentCount()];
+		this.sourceVocabulary = (bundle == null) ? new Vocabulary() : bundle.getSourceVocabulary();
+		this.targetVocabulary = (bundle == null) ? new Vocabulary() : bundle.getTargetVocabulary();
+		this.modified = new HashMap<Integer,List<ParallelSentence>>();
+		this.dirtyDocuments = new BitSet();
+		this.loadedListeners = new ArrayList<Runnable>();
+		this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Post-edit writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.recentlyUsed = new LinkedHashMap<Integer,List<ParallelSentence>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer,List<ParallelSentence>> eldest) {
+				if (size() > cachedDocuments) {
+					if (dirtyDocuments.get(eldest.getKey())) {
+						modified.put(eldest.getKey(), eldest.getValue());
+					}
+					return true;
+				} else {
+					return false;
+				}
+			}
+		};
+	}
+
+	public static Corpus open(String postEditedPath, String sourcePath, String targetPath, String alignmentsPath) throws IOException {
+		String[] paths = new String[]{ postEditedPath, sourcePath, targetPath, alignmentsPath };
+		String indexPath = postEditedPath + ".index";
+		return new Corpus(paths, indexPath, CorpusIndex.open(indexPath, paths, null), null, cachedDocuments()).openJournal();
+	}
+
+	/** Opens a corpus whose source, MT and alignments were compiled by {@link BundleConverter}. */
+	public static Corpus openBundle(String postEditedPath, String bundlePath) throws IOException {
+		String[] paths = new String[]{ postEditedPath, bundlePath, bundlePath, bundlePath };
+		String indexPath = postEditedPath + ".index";
+		CorpusBundle bundle = CorpusBundle.open(bundlePath);
+		return new Corpus(paths, indexPath, CorpusIndex.open(indexPath, paths, bundle), bundle, cachedDocuments()).openJournal();
+	}
+
+	/**
+	 * Opens a corpus, returning once document <code>firstDocument</code> has been indexed
+	 * if the index has to be rebuilt, and indexing the remaining documents in the background.
+	 */
+	public static Corpus openProgressively(String postEditedPath, String sourcePath, String targetPath, String alignmentsPath, int firstDocument) throws IOException {
+		String[] paths = new String[]{ postEditedPath, sourcePath, targetPath, alignmentsPath };
+		return openProgressively(paths, postEditedPath + ".index", null, firstDocument);
+	}
+
+	/** Like {@link #openProgressively(String, String, String, String, int)}, for a {@link CorpusBundle}. */
+	public static Corpus openBundleProgressively(String postEditedPath, String bundlePath, int firstDocument) throws IOException {
+		String[] paths = new String[]{ postEditedPath, bundlePath, bundlePath, bundlePath };
+		return openProgressively(paths, postEditedPath + ".index", CorpusBundle.open(bundlePath), firstDocument);
+	}
+
+	private static Corpus openProgressively(String[] paths, String indexPath, CorpusBundle bundle, int firstDocument) throws IOException {
+		CorpusIndex index = CorpusIndex.load(indexPath, paths);
+		if (index != null) {
+			return new Corpus(paths, indexPath, index, bundle, cachedDocuments()).openJournal();
+		}
+
+		index = new CorpusIndex();
+		CorpusIndex.Builder builder = new CorpusIndex.Builder(paths, bundle);
+		Corpus corpus;
+		try {
+			while (index.documentCount() <= firstDocument && builder.next()) {
+				index.append(builder);
+			}
+			corpus = new Corpus(paths, indexPath, index, bundle, cachedDocuments());
+		} catch (IOException e) {
+			builder.close();
+			throw e;
+		}
+		corpus.loadInBackground(builder);
+		return corpus.openJournal();
+	}
+
+	private void loadInBackground(final CorpusIndex.Builder builder) {
+		loading = true;
+		Thread loader = new Thread("Corpus loader") {
+			@Override
+			public void run() {
+				try {
+					boolean more;
+					do {
+						more = builder.next();
+						synchronized (Corpus.this) {
+							if (more) {
+								index.append(builder);
+							}
+							Corpus.this.notifyAll();
+						}
+					} while (more);
+					CorpusIndex saved = index.save(indexPath, paths);
+					synchronized (Corpus.this) {
+						index = saved;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					close(builder);
+					List<Runnable> listeners;
+					synchronized (Corpus.this) {
+						loading = false;
+						Corpus.this.notifyAll();
+						listeners = new ArrayList<Runnable>(loadedListeners);
+						loadedListeners.clear();
+					}
+					for (Runnable listener : listeners) {
+						listener.run();
+					}
+				}
+			}
+		};
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	private static void close(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * If journalling is enabled, replays the edits left in the journal by a previous session that did not save them,
+	 * saves them, and starts a new journal.
+	 */
+	private Corpus openJournal() throws IOException {
+		if (!Boolean.getBoolean(JOURNAL_PROPERTY)) {
+			return this;
+		}
+		List<File> generations = EditJournal.generations(paths[CorpusIndex.POST_EDIT]);
+		int replayed = 0;
+		for (File generation : generations) {
+			replayed += EditJournal.replay(generation, new EditJournal.Replayer() {
+				@Override
+				public void replay(int document, int sentence, String text) {
+					if (awaitDocument(document) && sentence < get(document).size()) {
+						get(document).get(sentence).setEditedTranslation(text);
+					}
+				}
+			});
+		}
+		if (replayed > 0) {
+			if (!save()) {
+				throw new IOException("Unable to save the edits recovered from " + generations);
+			}
+			System.err.println("Recovered " + replayed + " edits from " + generations);
+		}
+		for (File generation : generations) {
+			generation.delete();
+		}
+		journal = new EditJournal(paths[CorpusIndex.POST_EDIT], EditJournal.nextGeneration(generations), COMPACT_JOURNAL_BYTES, new Runnable() {
+			@Override
+			public void run() {
+				saveInBackground();
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * Closes the journal, once it has written everything it has been given, including the discarding of
+	 * generations that a finished save has made redundant. Call after the last {@link #save()}, before exiting,
+	 * or the next start replays edits that are already saved.
+	 */
+	public void close() {
+		EditJournal journal = this.journal;
+		if (journal != null) {
+			this.journal = null;
+			close(journal);
+		}
+	}
+
+	/** Returns true while documents are still being indexed in the background. */
+	public boolean isLoading() {
+		return loading;
+	}
+
+	/**
+	 * Runs <code>listener</code> once every document has been indexed:
+	 * straight away if that is already the case, otherwise on the loading thread.
+	 */
+	public void whenLoaded(Runnable listener) {
+		synchronized (this) {
+			if (loading) {
+				loadedListeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+
+	/**
+	 * Waits until document <code>documentNumber</code> has been indexed, or until indexing has finished.
+	 *
+	 * @return true if the corpus has a document <code>documentNumber</code>
+	 */
+	public synchronized boolean awaitDocument(int documentNumber) {
+		while (loading && documentNumber >= index.documentCount()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return documentNumber >= 0 && documentNumber < index.documentCount();
+	}
+
+	private synchronized void awaitLoaded() throws InterruptedException {
+		while (loading) {
+			wait();
+		}
+	}
+
+	private static int cachedDocuments() {
+		return Math.max(1, Integer.getInteger(CACHED_DOCUMENTS_PROPERTY, DEFAULT_CACHED_DOCUMENTS));
+	}
+
+	/** Tokens of the source side of every document parsed so far. */
+	public Vocabulary getSourceVocabulary() {
+		return sourceVocabulary;
+	}
+
+	/** Tokens of the machine translated side of every document parsed so far. */
+	public Vocabulary getTargetVocabulary() {
+		return targetVocabulary;
+	}
+
+	synchronized long firstLine(int documentNumber) {
+		return index.firstLine(documentNumber);
+	}
+
+	@Override
+	public synchronized int size() {
+		return index.documentCount();
+	}
+
+	@Override
+	public synchronized TranslatedDocument get(int index) {
+		if (index < 0 || index >= this.index.documentCount()) {
+			throw new IndexOutOfBoundsException("Document " + index + " of " + this.index.documentCount());
+		}
+		if (index >= documents.length) {
+			documents = Arrays.copyOf(documents, this.index.documentCount());
+		}
+		if (documents[index] == null) {
+			documents[index] = new TranslatedDocument(this, index, this.index.sentenceCount(index));
+		}
+		return documents[index];
+	}
+
+	synchronized List<ParallelSentence> sentences(TranslatedDocument document) {
+		int documentNumber = document.documentNumber;
+		if (resident != null) {
+			return resident.get(documentNumber);
+		}
+		List<ParallelSentence> sentences = modified.get(documentNumber);
+		if (sentences == null) {
+			sentences = document.cachedSentences();
+		}
+		if (sentences == null) {
+			sentences = parse(documentNumber);
+			document.cache(sentences);
+		}
+		recentlyUsed.put(documentNumber, sentences);
+		return sentences;
+	}
+
+	/**
+	 * Returns the sentences of <code>document</code> for a thread that reads ahead of the user, such as the prefetcher.
+	 * A document that is not loaded is parsed with private readers outside the corpus lock, like the tasks of {@link #parseAll},
+	 * and is only cached, so prefetching leaves the order of the recently used documents alone.
+	 */
+	List<ParallelSentence> prefetch(TranslatedDocument document) {
+		int documentNumber = document.documentNumber;
+		CorpusIndex index;
+		MappedLineReader[] readers = new MappedLineReader[CorpusIndex.FILES];
+		synchronized (this) {
+			List<ParallelSentence> sentences = loadedSentences(documentNumber);
+			if (sentences != null) {
+				return sentences;
+			}
+			index = this.index;
+			for (int i=0; i<CorpusIndex.FILES; i+=1) {
+				readers[i] = (this.readers[i] == null) ? null : this.readers[i].duplicate();
+			}
+		}
+
+		List<ParallelSentence> parsed = parse(documentNumber, index, readers, new LineTokenizer());
+
+		synchronized (this) {
+			// Loaded, and perhaps edited, while it was being parsed
+			List<ParallelSentence> sentences = loadedSentences(documentNumber);
+			if (sentences != null) {
+				return sentences;
+			}
+			document.cache(parsed);
+			return parsed;
+		}
+	}
+
+	private List<ParallelSentence> parse(int documentNumber) {
+		return parse(documentNumber, index, readers, tokenizer);
+	}
+
+	private List<ParallelSentence> parse(int documentNumber, CorpusIndex index, MappedLineReader[] readers, LineTokenizer tokenizer) {
+		MappedLineReader segment = openSegment(documentNumber, index);
+		MappedLineReader postEdits = (segment != null) ? segment : readers[CorpusIndex.POST_EDIT];
+		if (segment == null) {
+			postEdits.seek(index.offset(documentNumber, CorpusIndex.POST_EDIT));
+		}
+		try {
+			List<ParallelSentence> sentences;
+			if (bundle != null) {
+				sentences = bundle.sentences(documentNumber, postEdits);
+			} else {
+				sentences = parseText(documentNumber, index, postEdits, readers, tokenizer);
+			}
+			for (ParallelSentence sentence : sentences) {
+				sentence.attach(this, documentNumber);
+			}
+			return sentences;
+		} finally {
+			if (segment != null) {
+				close(segment);
+			}
+		}
+	}
+
+	/**
+	 * Opens the segment holding the post-edits of <code>documentNumber</code>,
+	 * or returns null if the document has none and is read from the flat post-edit file.
+	 */
+	private MappedLineReader openSegment(int documentNumber, CorpusIndex index) {
+		if (!segments.contains(documentNumber) || segments.sentenceCount(documentNumber) != index.sentenceCount(documentNumber)) {
+			return null;
+		}
+		try {
+			return segments.open(documentNumber);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/** Parses the source, MT and alignments in lockstep with <code>postEdits</code>, which is positioned at the document. */
+	private List<ParallelSentence> parseText(int documentNumber, CorpusIndex index, MappedLineReader postEdits, MappedLineReader[] readers, LineTokenizer tokenizer) {
+		int n = index.sentenceCount(documentNumber);
+		for (int i=1; i<CorpusIndex.FILES; i+=1) {
+			readers[i].seek(index.offset(documentNumber, i));
+		}
+		List<ParallelSentence> sentences = new ArrayList<ParallelSentence>(n);
+		for (int s=0; s<n; s+=1) {
+			postEdits.advance();
+			for (int i=1; i<CorpusIndex.FILES; i+=1) {
+				readers[i].advance();
+			}
+			sentences.add(TranslatedDocument.parseSentence(
+					postEdits,
+					readers[CorpusIndex.SOURCE],
+					readers[CorpusIndex.TARGET],
+					readers[CorpusIndex.ALIGNMENTS],
+					tokenizer, s, sourceVocabulary, targetVocabulary));
+		}
+		return sentences;
+	}
+
+	/**
+	 * Called by a sentence of <code>documentNumber</code> whenever its text changes.
+	 *
+	 * @param becameDirty true for the first change since the sentence was last saved
+	 */
+	void edited(int documentNumber, int sentenceNumber, String text, boolean becameDirty) {
+		if (becameDirty) {
+			synchronized (this) {
+				dirtyDocuments.set(documentNumber);
+				// Pinned until saved: the document may already have been evicted while it was clean
+				List<ParallelSentence> sentences = loadedSentences(documentNumber);
+				if (resident == null && sentences != null) {
+					modified.put(documentNumber, sentences);
+				}
+			}
+		}
+		EditJournal journal = this.journal;
+		if (journal != null) {
+			journal.append(documentNumber, sentenceNumber, text);
+		}
+	}
+
+	/** Returns true if any document has edits that have not been saved yet. */
+	public synchronized boolean isDirty() {
+		return !dirtyDocuments.isEmpty();
+	}
+
+	/**
+	 * Parses every document on a fork/join pool with the given number of threads,
+	 * after waiting for any background indexing to finish.
+	 * Afterwards all documents stay in memory and are never reparsed.
+	 * <p>
+	 * Documents stay available while this runs; one that was opened meanwhile keeps its loaded sentences.
+	 */
+	public void parseAll(int parallelism) {
+		CorpusIndex index;
+		MappedLineReader[] readers;
+		synchronized (this) {
+			try {
+				awaitLoaded();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			index = this.index;
+			readers = this.readers.clone();
+			parsing = true;
+		}
+
+		int n = index.documentCount();
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final List<ParallelSentence>[] parsed = new List[n];
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new ParseTask(parsed, index, readers, 0, n));
+		} finally {
+			pool.shutdown();
+		}
+
+		synchronized (this) {
+			List<List<ParallelSentence>> resident = new ArrayList<List<ParallelSentence>>(n);
+			for (int d=0; d<n; d+=1) {
+				List<ParallelSentence> sentences = loadedSentences(d);
+				resident.add(sentences != null ? sentences : parsed[d]);
+			}
+			this.resident = resident;
+			recentlyUsed.clear();
+			modified.clear();
+			parsing = false;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private class ParseTask extends RecursiveAction {
+
+		private final List<ParallelSentence>[] parsed;
+		private final CorpusIndex index;
+		private final MappedLineReader[] readers;
+		private final int from;
+		private final int to;
+
+		ParseTask(List<ParallelSentence>[] parsed, CorpusIndex index, MappedLineReader[] readers, int from, int to) {
+			this.parsed = parsed;
+			this.index = index;
+			this.readers = readers;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int sentences = 0;
+			for (int d=from; d<to && sentences<=SENTENCES_PER_TASK; d+=1) {
+				sentences += index.sentenceCount(d);
+			}
+
+			if (to - from > 1 && sentences > SENTENCES_PER_TASK) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ParseTask(parsed, index, readers, from, middle), new ParseTask(parsed, index, readers, middle, to));
+			} else {
+				MappedLineReader[] local = new MappedLineReader[CorpusIndex.FILES];
+				for (int i=0; i<CorpusIndex.FILES; i+=1) {
+					local[i] = (readers[i] == null) ? null : readers[i].duplicate();
+				}
+				LineTokenizer tokenizer = new LineTokenizer();
+				for (int d=from; d<to; d+=1) {
+					parsed[d] = parse(d, index, local, tokenizer);
+				}
+			}
+		}
+
+	}
+
+	private List<ParallelSentence> loadedSentences(int documentNumber) {
+		if (resident != null) {
+			return resident.get(documentNumber);
+		}
+		List<ParallelSentence> sentences = modified.get(documentNumber);
+		if (sentences == null && documentNumber < documents.length && documents[documentNumber] != null) {
+			sentences = documents[documentNumber].cachedSentences();
+		}
+		return sentences;
+	}
+
+	/**
+	 * Saves on the calling thread, waiting for any save already queued or in progress.
+	 *
+	 * @see #saveInBackground()
+	 */
+	public boolean save() {
+		try {
+			return saveInBackground().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Queues a save of the documents that have been edited, on a single background writer thread.
+	 * <p>
+	 * Saves requested before the writer gets to a queued save are coalesced into it:
+	 * the edits are snapshotted when the write starts, so one write covers all of them.
+	 * A save requested while a write is in progress queues one more write.
+	 *
+	 * @return completes with true once the edits are on disk, or false if writing failed
+	 */
+	public synchronized Future<Boolean> saveInBackground() {
+		if (queuedSave == null) {
+			queuedSave = new FutureTask<Boolean>(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return write();
+				}
+			});
+			writer.execute(queuedSave);
+		}
+		return queuedSave;
+	}
+
+	/**
+	 * Folds every per-document segment back into the flat post-edit file and removes the segments,
+	 * together with any unsaved edits.
+	 */
+	public boolean mergeSegments() {
+		synchronized (this) {
+			mergeRequested = true;
+		}
+		return save();
+	}
+
+	/** The edited translations of the documents to write, taken under the corpus lock. */
+	private static class Snapshot {
+
+		final CorpusIndex index;
+		final MappedLineReader postEdits;
+		/** Write the flat post-edit file rather than segments. */
+		final boolean flat;
+		final int[] documents;
+		/** Sentences of each document, or null for a document that is only being copied from its segment. */
+		final List<List<ParallelSentence>> sentences;
+		final String[][] translations;
+		/** The journal generation holding no edits newer than this snapshot, or -1 without a journal. */
+		final int journalGeneration;
+
+		Snapshot(CorpusIndex index, MappedLineReader postEdits, boolean flat, int[] documents, List<List<ParallelSentence>> sentences, String[][] translations, int journalGeneration) {
+			this.index = index;
+			this.postEdits = postEdits;
+			this.flat = flat;
+			this.documents = documents;
+			this.sentences = sentences;
+			this.translations = translations;
+			this.journalGeneration = journalGeneration;
+		}
+
+	}
+
+	/**
+	 * Clears the dirty flags and copies out what a write needs.
+	 * The documents stay pinned in memory until the write has finished.
+	 * A flat write also covers the documents that have segments, so that the segments can be removed.
+	 *
+	 * @return null if nothing needs to be written
+	 */
+	private Snapshot snapshot() {
+		for (int d=dirtyDocuments.nextSetBit(0); d>=0; d=dirtyDocuments.nextSetBit(d+1)) {
+			if (loadedSentences(d) == null) {
+				// Checked before anything changes, so the dirty flags stay set, and the journal still holds the edits
+				throw new IllegalStateException("The edits to document " + (d+1) + " are no longer in memory");
+			}
+		}
+		boolean flat = !segmented || mergeRequested;
+		mergeRequested = false;
+		BitSet documents = (BitSet) dirtyDocuments.clone();
+		if (flat) {
+			for (int d : segments.documents()) {
+				if (segments.sentenceCount(d) == index.sentenceCount(d)) {
+					documents.set(d);
+				}
+			}
+		}
+		if (documents.isEmpty()) {
+			if (flat && !segments.isEmpty()) {
+				segments.clear(index);
+			}
+			return null;
+		}
+
+		int[] written = new int[documents.cardinality()];
+		List<List<ParallelSentence>> saved = new ArrayList<List<ParallelSentence>>(written.length);
+		String[][] translations = new String[written.length][];
+		for (int i=0, d=documents.nextSetBit(0); d>=0; i+=1, d=documents.nextSetBit(d+1)) {
+			written[i] = d;
+			if (!dirtyDocuments.get(d)) {
+				saved.add(null);
+				continue;
+			}
+			List<ParallelSentence> sentences = loadedSentences(d);
+			saved.add(sentences);
+			translations[i] = new String[sentences.size()];
+			for (int s=0; s<translations[i].length; s+=1) {
+				translations[i][s] = sentences.get(s).snapshot();
+			}
+			if (resident == null) {
+				modified.put(d, sentences);
+			}
+		}
+		dirtyDocuments.clear();
+		EditJournal journal = this.journal;
+		int journalGeneration = (journal != null) ? journal.rotate() : -1;
+		return new Snapshot(index, readers[CorpusIndex.POST_EDIT].duplicate(), flat, written, saved, translations, journalGeneration);
+	}
+
+	/**
+	 * Runs on the writer thread.
+	 * If documents are still being indexed, this waits until indexing has finished.
+	 */
+	private boolean write() {
+		Snapshot snapshot;
+		synchronized (this) {
+			queuedSave = null;
+			try {
+				awaitLoaded();
+			} catch (InterruptedException e) {
+				return false;
+			}
+			snapshot = snapshot();
+		}
+		if (snapshot == null) {
+			return true;
+		}
+
+		boolean written = false;
+		try {
+			if (snapshot.flat) {
+				writeFlat(snapshot);
+			} else {
+				writeSegments(snapshot);
+			}
+			written = true;
+			if (snapshot.journalGeneration >= 0) {
+				journal.discard(snapshot.journalGeneration);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			synchronized (this) {
+				for (int i=0; i<snapshot.documents.length; i+=1) {
+					int d = snapshot.documents[i];
+					List<ParallelSentence> sentences = snapshot.sentences.get(i);
+					if (sentences == null) {
+						continue;
+					}
+					if (written) {
+						if (!dirtyDocuments.get(d) && !parsing) {
+							modified.remove(d);
+						}
+					} else {
+						dirtyDocuments.set(d);
+					}
+				}
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Lines are not fixed-width, so the post-edit file is rewritten to a temporary file,
+	 * forced to disk and atomically renamed over the original; a crash leaves either the old or the new file.
+	 * Only the sentence lines of edited documents are encoded; everything in between is copied
+	 * from the previous version of the file with {@link FileChannel#transferTo}, one transfer per unchanged stretch,
+	 * and the index offsets are shifted rather than recomputed.
+	 * The new index is written before the corpus lock is taken, so the lock is held only to rename the two files into place.
+	 */
+	private void writeFlat(Snapshot snapshot) throws IOException {
+		CorpusIndex index = snapshot.index;
+		int documentCount = index.documentCount();
+		File postEditFile = new File(paths[CorpusIndex.POST_EDIT]);
+		File temp = new File(paths[CorpusIndex.POST_EDIT] + ".tmp");
+		long[] growth = new long[documentCount];
+
+		FileChannel in = new FileInputStream(postEditFile).getChannel();
+		FileChannel out = new FileOutputStream(temp).getChannel();
+		try {
+			MappedLineReader postEdits = snapshot.postEdits;
+			long copied = 0;
+			for (int i=0; i<snapshot.documents.length; i+=1) {
+				int d = snapshot.documents[i];
+
+				// The document's sentence lines, up to but not including the terminator of the last one
+				long start = index.offset(d, CorpusIndex.POST_EDIT);
+				postEdits.seek(start);
+				for (int s=0, n=index.sentenceCount(d); s<n; s+=1) {
+					postEdits.advance();
+				}
+				long end = postEdits.lineEnd();
+
+				String[] translations = (snapshot.translations[i] != null) ? snapshot.translations[i] : segments.read(d);
+				byte[] bytes = encode(translations);
+				transfer(in, copied, start, out);
+				out.write(ByteBuffer.wrap(bytes));
+				copied = end;
+				growth[d] = bytes.length - (end - start);
+			}
+			transfer(in, copied, in.size(), out);
+			out.force(true);
+		} finally {
+			in.close();
+			out.close();
+		}
+
+		long[] offsets = new long[documentCount];
+		long shift = 0;
+		for (int d=0; d<documentCount; d+=1) {
+			offsets[d] = index.offset(d, CorpusIndex.POST_EDIT) + shift;
+			shift += growth[d];
+		}
+
+		File indexTemp = index.withPostEditOffsets(indexPath, paths, temp, offsets);
+
+		synchronized (this) {
+			move(temp, postEditFile);
+			this.index = CorpusIndex.install(indexTemp, indexPath);
+			readers[CorpusIndex.POST_EDIT].close();
+			readers[CorpusIndex.POST_EDIT] = new MappedLineReader(paths[CorpusIndex.POST_EDIT]);
+			if (!segments.isEmpty()) {
+				segments.clear(index);
+			}
+		}
+	}
+
+	/** Writes each edited document to its own segment, then lists the new segments in the manifest. */
+	private void writeSegments(Snapshot snapshot) throws IOException {
+		for (int i=0; i<snapshot.documents.length; i+=1) {
+			segments.write(snapshot.documents[i], snapshot.translations[i]);
+		}
+		segments.writeManifest();
+	}
+
+	/** Replaces <code>to</code> with <code>from</code>, atomically where the file system allows it. */
+	private static void move(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/** The <code>translations</code>, one per line, without a terminator after the last. */
+	private static byte[] encode(String[] translations) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (int s=0; s<translations.length; s+=1) {
+			if (s > 0) {
+				bytes.write(NEWLINE);
+			}
+			bytes.write(translations[s].getBytes("UTF-8"));
+		}
+		return bytes.toByteArray();
+	}
+
+	/** Copies bytes <code>[from, to)</code> of <code>in</code> to the end of <code>out</code>. */
+	private static void transfer(FileChannel in, long from, long to, FileChannel out) throws IOException {
+		while (from < to) {
+			long n = in.transferTo(from, to - from, out);
+			if (n <= 0) {
+				throw new IOException("Unable to copy the post-edit file");
+			}
+			from += n;
+		}
+	}
+
+}
@@ -0,0 +1,206 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import util.MappedFile;
+import util.MappedLineReader;
+import util.Vocabulary;
+
+/**
+ * Precompiled binary form of the source, MT and alignment files, produced by {@link BundleConverter}.
+ * <p>
+ * The bundle is memory-mapped and read in place: opening it reads a fixed-size header,
+ * and a document's sentences are decoded from their token ids only when the document is needed.
+ * The post-edit file stays a text file next to the bundle.
+ * <p>
+ * All numbers are big-endian. The layout is
+ * <pre>
+ * header     magic, version, document count, offsets of the document table and both vocabularies
+ * sentences  per sentence: source length, target length, alignment count,
+ *            source token ids, target token ids, alignment (source, target) pairs
+ * documents  per document: first line number, offset of its first sentence, sentence count
+ * source vocabulary, target vocabulary    as written by {@link Vocabulary#write}
+ * </pre>
+ */
+class CorpusBundle implements Closeable {
+
+	private static final int MAGIC = 0x5045424E;
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 8 + 8;
+	private static final int DOCUMENT_SIZE = 8 + 8 + 4;
+
+	private final MappedFile file;
+	private final int documentCount;
+	private final long documentsOffset;
+	private final Vocabulary sourceVocabulary;
+	private final Vocabulary targetVocabulary;
+
+	private CorpusBundle(MappedFile file) throws IOException {
+		this.file = file;
+		if (file.length() < HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != VERSION) {
+			throw new IOException("Not a corpus bundle");
+		}
+		this.documentCount = file.getInt(8);
+		this.documentsOffset = file.getLong(12);
+		this.sourceVocabulary = Vocabulary.map(file, file.getLong(20));
+		this.targetVocabulary = Vocabulary.map(file, file.getLong(28));
+	}
+
+	static CorpusBundle open(String path) throws IOException {
+		MappedFile file = new MappedFile(path);
+		try {
+			return new CorpusBundle(file);
+		} catch (IOException e) {
+			file.close();
+			throw new IOException(path + ": " + e.getMessage());
+		}
+	}
+
+	/** Returns true if <code>path</code> starts with the bundle magic number. */
+	static boolean isBundle(String path) {
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(path));
+			try {
+				return in.readInt() == MAGIC;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	int documentCount() {
+		return documentCount;
+	}
+
+	long firstLine(int document) {
+		return file.getLong(documentsOffset + (long) document * DOCUMENT_SIZE);
+	}
+
+	private long sentencesOffset(int document) {
+		return file.getLong(documentsOffset + (long) document * DOCUMENT_SIZE + 8);
+	}
+
+	int sentenceCount(int document) {
+		return file.getInt(documentsOffset + (long) document * DOCUMENT_SIZE + 16);
+	}
+
+	Vocabulary getSourceVocabulary() {
+		return sourceVocabulary;
+	}
+
+	Vocabulary getTargetVocabulary() {
+		return targetVocabulary;
+	}
+
+	/**
+	 * Decodes the sentences of <code>document</code>.
+	 *
+	 * @param postEdits positioned at the document's first line in the post-edit file
+	 */
+	List<ParallelSentence> sentences(int document, MappedLineReader postEdits) {
+		int n = sentenceCount(document);
+		long position = sentencesOffset(document);
+		List<ParallelSentence> sentences = new ArrayList<ParallelSentence>(n);
+		for (int s=0; s<n; s+=1) {
+			int[] sourceTokens = new int[file.getInt(position)];
+			int[] targetTokens = new int[file.getInt(position + 4)];
+			int[] alignmentPoints = new int[2 * file.getInt(position + 8)];
+			position += 12;
+			position = read(sourceTokens, position);
+			position = read(targetTokens, position);
+			position = read(alignmentPoints, position);
+
+			postEdits.advance();
+			sentences.add(new ParallelSentence(postEdits.currentLine(), sourceVocabulary, sourceTokens, targetVocabulary, targetTokens, alignmentPoints, s));
+		}
+		return sentences;
+	}
+
+	private long read(int[] values, long position) {
+		for (int i=0; i<values.length; i+=1) {
+			values[i] = file.getInt(position);
+			position += 4;
+		}
+		return position;
+	}
+
+	/** Writes the source, MT and alignments of every document of <code>corpus</code> as a bundle. */
+	static void write(Corpus corpus, String path) throws IOException {
+		int documents = corpus.size();
+		long[] sentencesOffsets = new long[documents];
+		long documentsOffset;
+		long sourceVocabularyOffset;
+		long targetVocabularyOffset;
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+		try {
+			for (int i=0; i<HEADER_SIZE; i+=1) {
+				out.write(0);
+			}
+			long position = HEADER_SIZE;
+
+			for (int d=0; d<documents; d+=1) {
+				sentencesOffsets[d] = position;
+				for (ParallelSentence sentence : corpus.get(d)) {
+					out.writeInt(sentence.sourceLength());
+					out.writeInt(sentence.targetLength());
+					out.writeInt(sentence.alignmentCount());
+					for (int i=0; i<sentence.sourceLength(); i+=1) {
+						out.writeInt(sentence.sourceToken(i));
+					}
+					for (int i=0; i<sentence.targetLength(); i+=1) {
+						out.writeInt(sentence.targetToken(i));
+					}
+					for (int i=0; i<sentence.alignmentCount(); i+=1) {
+						out.writeInt(sentence.alignmentSource(i));
+						out.writeInt(sentence.alignmentTarget(i));
+					}
+					position += 12 + 4L * (sentence.sourceLength() + sentence.targetLength() + 2 * sentence.alignmentCount());
+				}
+			}
+
+			documentsOffset = position;
+			for (int d=0; d<documents; d+=1) {
+				out.writeLong(corpus.firstLine(d));
+				out.writeLong(sentencesOffsets[d]);
+				out.writeInt(corpus.get(d).size());
+			}
+			position += (long) documents * DOCUMENT_SIZE;
+
+			sourceVocabularyOffset = position;
+			position += corpus.getSourceVocabulary().write(out);
+			targetVocabularyOffset = position;
+			position += corpus.getTargetVocabulary().write(out);
+		} finally {
+			out.close();
+		}
+
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			file.writeInt(MAGIC);
+			file.writeInt(VERSION);
+			file.writeInt(documents);
+			file.writeLong(documentsOffset);
+			file.writeLong(sourceVocabularyOffset);
+			file.writeLong(targetVocabularyOffset);
+		} finally {
+			file.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+}
@@ -0,0 +1,334 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import util.LineTokenizer;
+import util.MappedLineReader;
+
+/**
+ * Sidecar index recording where each document starts in the post-edit, source, MT and alignment files.
+ * <p>
+ * The index is stored next to the post-edit file and memory-mapped, so reopening a corpus
+ * whose files have not changed costs the same regardless of corpus size.
+ * The header records the length and modification time of all four files;
+ * if any of them differs, the index is rebuilt with a single sequential pass over the files.
+ * <p>
+ * When the source, MT and alignments come from a {@link CorpusBundle}, the document boundaries are already known
+ * and only the post-edit file is scanned; the other offsets are then unused.
+ * <p>
+ * An index that is being rebuilt is held in memory and grows a document at a time,
+ * so a caller can start using the first documents before the scan has finished.
+ */
+class CorpusIndex {
+
+	static final int POST_EDIT = 0;
+	static final int SOURCE = 1;
+	static final int TARGET = 2;
+	static final int ALIGNMENTS = 3;
+	static final int FILES = 4;
+
+	private static final int MAGIC = 0x50454958;
+	private static final int VERSION = 2;
+
+	private static final int HEADER_SIZE = 4 + 4 + FILES * (8 + 8) + 4;
+	private static final int RECORD_SIZE = 4 + 8 + FILES * 8;
+
+	/** First line followed by the offset in each file, for an index held in memory. */
+	private static final int RECORD_LONGS = 1 + FILES;
+
+	/** The saved index, or null while the index is being built in memory. */
+	private final MappedByteBuffer buffer;
+	private int documentCount;
+
+	private int[] sentenceCounts;
+	private long[] records;
+
+	private CorpusIndex(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		// A file cut short, say by a crash while it was written, has no count; describes() then rejects it
+		this.documentCount = (buffer.capacity() >= HEADER_SIZE) ? buffer.getInt(HEADER_SIZE - 4) : 0;
+	}
+
+	/** Creates an empty in-memory index, to be filled from a {@link Builder}. */
+	CorpusIndex() {
+		this.buffer = null;
+		this.documentCount = 0;
+		this.sentenceCounts = new int[1024];
+		this.records = new long[1024 * RECORD_LONGS];
+	}
+
+	int documentCount() {
+		return documentCount;
+	}
+
+	int sentenceCount(int document) {
+		if (buffer != null) {
+			return buffer.getInt(HEADER_SIZE + document * RECORD_SIZE);
+		} else {
+			return sentenceCounts[document];
+		}
+	}
+
+	/** Line number, counting from zero, of the first sentence of <code>document</code> in each of the four files. */
+	long firstLine(int document) {
+		if (buffer != null) {
+			return buffer.getLong(HEADER_SIZE + document * RECORD_SIZE + 4);
+		} else {
+			return records[document * RECORD_LONGS];
+		}
+	}
+
+	long offset(int document, int file) {
+		if (buffer != null) {
+			return buffer.getLong(HEADER_SIZE + document * RECORD_SIZE + 12 + file * 8);
+		} else {
+			return records[document * RECORD_LONGS + 1 + file];
+		}
+	}
+
+	/** Adds the document that <code>builder</code> has just scanned to this in-memory index. */
+	void append(Builder builder) {
+		if (documentCount == sentenceCounts.length) {
+			sentenceCounts = Arrays.copyOf(sentenceCounts, documentCount * 2);
+			records = Arrays.copyOf(records, documentCount * 2 * RECORD_LONGS);
+		}
+		sentenceCounts[documentCount] = builder.sentences;
+		records[documentCount * RECORD_LONGS] = builder.firstLine;
+		System.arraycopy(builder.starts, 0, records, documentCount * RECORD_LONGS + 1, FILES);
+		documentCount += 1;
+	}
+
+	private boolean describes(String[] paths) {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			return false;
+		}
+		for (int i=0; i<FILES; i+=1) {
+			File file = new File(paths[i]);
+			if (buffer.getLong(8 + i*16) != file.length() || buffer.getLong(8 + i*16 + 8) != file.lastModified()) {
+				return false;
+			}
+		}
+		return documentCount >= 0 && buffer.capacity() == HEADER_SIZE + (long) documentCount * RECORD_SIZE;
+	}
+
+	/**
+	 * Returns the index saved at <code>indexPath</code>, or null if it is missing or out of date.
+	 *
+	 * @param paths post-edit, source, MT and alignment paths, in that order
+	 */
+	static CorpusIndex load(String indexPath, String[] paths) throws IOException {
+		File indexFile = new File(indexPath);
+		if (indexFile.isFile()) {
+			CorpusIndex index = map(indexFile);
+			if (index.describes(paths)) {
+				return index;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Opens the index at <code>indexPath</code>, rebuilding it first if it is missing or out of date.
+	 *
+	 * @param paths post-edit, source, MT and alignment paths, in that order
+	 * @param bundle the bundle holding the source, MT and alignments, or null if they are text files
+	 */
+	static CorpusIndex open(String indexPath, String[] paths, CorpusBundle bundle) throws IOException {
+		CorpusIndex index = load(indexPath, paths);
+		if (index != null) {
+			return index;
+		}
+		index = new CorpusIndex();
+		Builder builder = new Builder(paths, bundle);
+		try {
+			while (builder.next()) {
+				index.append(builder);
+			}
+		} finally {
+			builder.close();
+		}
+		return index.save(indexPath, paths);
+	}
+
+	/** Writes this index to <code>indexPath</code> and returns the saved, memory-mapped copy. */
+	CorpusIndex save(String indexPath, String[] paths) throws IOException {
+		return install(write(indexPath, paths, null), indexPath);
+	}
+
+	/**
+	 * Writes a copy of this index in which the post-edit offsets are replaced, as is needed when the post-edit file
+	 * is rewritten, to a temporary file that {@link #install(File, String)} then renames into place.
+	 * The copy is stamped with <code>postEditFile</code>, the rewritten file that is about to replace the original.
+	 */
+	File withPostEditOffsets(String indexPath, String[] paths, File postEditFile, long[] postEditOffsets) throws IOException {
+		String[] written = paths.clone();
+		written[POST_EDIT] = postEditFile.getPath();
+		return write(indexPath, written, postEditOffsets);
+	}
+
+	/** Renames an index written to <code>temp</code> over <code>indexPath</code> and returns its memory-mapped copy. */
+	static CorpusIndex install(File temp, String indexPath) throws IOException {
+		replace(temp, new File(indexPath));
+		return map(new File(indexPath));
+	}
+
+	private File write(String indexPath, String[] paths, long[] postEditOffsets) throws IOException {
+		File temp = new File(indexPath + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			writeHeader(out, paths, documentCount);
+			for (int d=0; d<documentCount; d+=1) {
+				out.writeInt(sentenceCount(d));
+				out.writeLong(firstLine(d));
+				out.writeLong((postEditOffsets != null) ? postEditOffsets[d] : offset(d, POST_EDIT));
+				for (int i=1; i<FILES; i+=1) {
+					out.writeLong(offset(d, i));
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return temp;
+	}
+
+	/**
+	 * Finds document boundaries with one sequential pass, a document at a time.
+	 * <p>
+	 * For text files the four files are read in lockstep, and a document ends at the first line
+	 * whose source or MT side is blank or a separator.
+	 * For a bundle the boundaries are already known and the post-edit file is only scanned for line starts.
+	 */
+	static class Builder implements Closeable {
+
+		private final MappedLineReader[] readers;
+		private final CorpusBundle bundle;
+		private final String postEditedPath;
+		private final LineTokenizer tokenizer;
+
+		private long line;
+		private int document;
+
+		private int sentences;
+		private long firstLine;
+		private final long[] starts;
+
+		/**
+		 * @param paths post-edit, source, MT and alignment paths, in that order
+		 * @param bundle the bundle holding the source, MT and alignments, or null if they are text files
+		 */
+		Builder(String[] paths, CorpusBundle bundle) throws IOException {
+			this.readers = new MappedLineReader[FILES];
+			this.bundle = bundle;
+			this.postEditedPath = paths[POST_EDIT];
+			this.tokenizer = new LineTokenizer();
+			this.starts = new long[FILES];
+			try {
+				readers[POST_EDIT] = new MappedLineReader(paths[POST_EDIT]);
+				if (bundle == null) {
+					for (int i=1; i<FILES; i+=1) {
+						readers[i] = new MappedLineReader(paths[i]);
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Scans to the end of the next document, which {@link CorpusIndex#append(Builder)} can then record.
+		 *
+		 * @return false if there are no more documents
+		 */
+		boolean next() throws IOException {
+			return (bundle == null) ? nextText() : nextBundled();
+		}
+
+		private boolean nextText() {
+			sentences = 0;
+			while (readers[0].hasNextLine() && readers[1].hasNextLine() && readers[2].hasNextLine() && readers[3].hasNextLine()) {
+				for (int i=0; i<FILES; i+=1) {
+					readers[i].advance();
+				}
+				line += 1;
+				if (tokenizer.tokenize(readers[SOURCE], null) >= 0 && tokenizer.tokenize(readers[TARGET], null) >= 0) {
+					if (sentences == 0) {
+						firstLine = line - 1;
+						for (int i=0; i<FILES; i+=1) {
+							starts[i] = readers[i].lineStart();
+						}
+					}
+					sentences += 1;
+				} else if (sentences > 0) {
+					document += 1;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean nextBundled() throws IOException {
+			if (document == bundle.documentCount()) {
+				return false;
+			}
+			firstLine = bundle.firstLine(document);
+			while (line < firstLine && readers[POST_EDIT].advance()) {
+				line += 1;
+			}
+			if (line < firstLine) {
+				throw new IOException(postEditedPath + " has fewer lines than the bundle's document " + (document+1));
+			}
+			sentences = bundle.sentenceCount(document);
+			starts[POST_EDIT] = readers[POST_EDIT].position();
+			document += 1;
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (MappedLineReader reader : readers) {
+				if (reader != null) {
+					reader.close();
+				}
+			}
+		}
+
+	}
+
+	private static void writeHeader(DataOutputStream out, String[] paths, int documents) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		for (int i=0; i<FILES; i+=1) {
+			File file = new File(paths[i]);
+			out.writeLong(file.length());
+			out.writeLong(file.lastModified());
+		}
+		out.writeInt(documents);
+	}
+
+	private static CorpusIndex map(File indexFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		try {
+			return new CorpusIndex(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void replace(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			to.delete();
+			if (!from.renameTo(to)) {
+				throw new IOException("Unable to rename " + from + " to " + to);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,381 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of post-edits, so that edits survive a crash between saves.
+ * <p>
+ * Every change to a sentence is appended as a record of document number, sentence number and new text.
+ * Records are handed to a background thread, which writes whatever has accumulated in one go
+ * and forces it to disk once per batch, so a burst of keystrokes costs one fsync rather than one each.
+ * <p>
+ * The journal is split into generations, <code>postEdit.journal.0</code>, <code>postEdit.journal.1</code>, ...
+ * When a save snapshots the edits it {@link #rotate rotates} to a new generation,
+ * and once the save is on disk the older generations are {@link #discard discarded}.
+ * On startup any remaining generations are {@link #replay replayed} over the post-edit file.
+ * <p>
+ * A generation starts with a magic number; each record is
+ * <pre>
+ * document   varint
+ * sentence   varint
+ * length     varint, of the UTF-8 text
+ * text       UTF-8 bytes
+ * checksum   CRC-32 of the preceding fields, big-endian
+ * </pre>
+ * A torn record at the end of a generation fails its checksum and ends the replay of that generation.
+ */
+class EditJournal implements Closeable {
+
+	private static final int MAGIC = 0x50454A4C;
+
+	private static final String SUFFIX = ".journal.";
+
+	/** Receives the records of a journal being replayed. */
+	interface Replayer {
+		void replay(int document, int sentence, String text);
+	}
+
+	private static final Object ROTATE = new Object();
+
+	private static class Record {
+
+		final int document;
+		final int sentence;
+		final String text;
+
+		Record(int document, int sentence, String text) {
+			this.document = document;
+			this.sentence = sentence;
+			this.text = text;
+		}
+
+	}
+
+	private final String postEditedPath;
+	private final long compactBytes;
+	private final Runnable compactor;
+
+	/** Items for the writer thread: records, {@link #ROTATE}, or the Integer generation to discard up to. */
+	private final List<Object> queue;
+	private int generation;
+	private boolean closed;
+
+	private final Thread writer;
+
+	/**
+	 * Starts writing generation <code>generation</code> of the journal of <code>postEditedPath</code>.
+	 *
+	 * @param compactBytes once a generation reaches this size, <code>compactor</code> is run once
+	 *                     to fold the journal into the post-edit file
+	 */
+	EditJournal(String postEditedPath, final int generation, long compactBytes, Runnable compactor) throws IOException {
+		this.postEditedPath = postEditedPath;
+		this.compactBytes = compactBytes;
+		this.compactor = compactor;
+		this.queue = new ArrayList<Object>();
+		this.generation = generation;
+		final FileChannel channel = open(file(postEditedPath, generation));
+		this.writer = new Thread("Edit journal") {
+			@Override
+			public void run() {
+				write(channel, generation);
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	void append(int document, int sentence, String text) {
+		enqueue(new Record(document, sentence, text));
+	}
+
+	/**
+	 * Starts a new generation for records appended from now on.
+	 *
+	 * @return the generation that was current until now
+	 */
+	synchronized int rotate() {
+		enqueue(ROTATE);
+		generation += 1;
+		return generation - 1;
+	}
+
+	/** Deletes generation <code>upTo</code> and all earlier ones, once their records have been saved. */
+	void discard(int upTo) {
+		enqueue(Integer.valueOf(upTo));
+	}
+
+	private synchronized void enqueue(Object item) {
+		if (!closed) {
+			queue.add(item);
+			notifyAll();
+		}
+	}
+
+	/** Writes what is still queued and stops the writer thread. */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(FileChannel channel, int writing) {
+		List<Object> batch = new ArrayList<Object>();
+		Buffer buffer = new Buffer();
+		CRC32 checksum = new CRC32();
+		boolean compacting = false;
+
+		try {
+			while (true) {
+				synchronized (this) {
+					while (queue.isEmpty() && !closed) {
+						wait();
+					}
+					if (queue.isEmpty()) {
+						break;
+					}
+					batch.addAll(queue);
+					queue.clear();
+				}
+
+				for (Object item : batch) {
+					if (item instanceof Record) {
+						Record record = (Record) item;
+						int start = buffer.length;
+						byte[] text = record.text.getBytes("UTF-8");
+						buffer.writeVarint(record.document);
+						buffer.writeVarint(record.sentence);
+						buffer.writeVarint(text.length);
+						buffer.write(text, 0, text.length);
+						checksum.reset();
+						checksum.update(buffer.bytes, start, buffer.length - start);
+						buffer.writeInt((int) checksum.getValue());
+					} else if (item == ROTATE) {
+						flush(channel, buffer);
+						channel.close();
+						writing += 1;
+						channel = open(file(postEditedPath, writing));
+						compacting = false;
+					} else {
+						flush(channel, buffer);
+						int upTo = ((Integer) item).intValue();
+						for (File file : generations(postEditedPath)) {
+							if (generation(file) <= upTo && generation(file) < writing) {
+								file.delete();
+							}
+						}
+					}
+				}
+				flush(channel, buffer);
+				batch.clear();
+
+				if (!compacting && channel.size() >= compactBytes) {
+					compacting = true;
+					compactor.run();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			e.printStackTrace();
+			synchronized (this) {
+				closed = true;
+				queue.clear();
+			}
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Writes the batch with one write and one fsync. */
+	private static void flush(FileChannel channel, Buffer buffer) throws IOException {
+		if (buffer.length > 0) {
+			ByteBuffer bytes = ByteBuffer.wrap(buffer.bytes, 0, buffer.length);
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			channel.force(false);
+			buffer.length = 0;
+		}
+	}
+
+	private static FileChannel open(File file) throws IOException {
+		FileChannel channel = new FileOutputStream(file, true).getChannel();
+		if (channel.size() == 0) {
+			channel.write(ByteBuffer.wrap(new byte[]{ (byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC }));
+			channel.force(true);
+		}
+		return channel;
+	}
+
+	private static File file(String postEditedPath, int generation) {
+		return new File(postEditedPath + SUFFIX + generation);
+	}
+
+	private static int generation(File file) {
+		String name = file.getName();
+		return Integer.parseInt(name.substring(name.lastIndexOf('.') + 1));
+	}
+
+	/** Journal generations of <code>postEditedPath</code> on disk, oldest first. */
+	static List<File> generations(String postEditedPath) {
+		File postEditFile = new File(postEditedPath).getAbsoluteFile();
+		final String prefix = postEditFile.getName() + SUFFIX;
+		File[] files = postEditFile.getParentFile().listFiles();
+		List<File> generations = new ArrayList<File>();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(prefix) && name.length() > prefix.length() && isNumber(name.substring(prefix.length()))) {
+					generations.add(file);
+				}
+			}
+		}
+		Collections.sort(generations, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Integer.compare(generation(a), generation(b));
+			}
+		});
+		return generations;
+	}
+
+	/** The generation to start writing after <code>generations</code>. */
+	static int nextGeneration(List<File> generations) {
+		return generations.isEmpty() ? 0 : generation(generations.get(generations.size() - 1)) + 1;
+	}
+
+	private static boolean isNumber(String s) {
+		for (int i=0; i<s.length(); i+=1) {
+			if (!Character.isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return s.length() < 10;
+	}
+
+	/**
+	 * Passes the records of one generation to <code>replayer</code>, in the order they were written.
+	 *
+	 * @return the number of records replayed
+	 */
+	static int replay(File file, Replayer replayer) throws IOException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		Buffer in = new Buffer(bytes);
+		if (bytes.length < 4 || in.readInt() != MAGIC) {
+			return 0;
+		}
+		CRC32 checksum = new CRC32();
+		int records = 0;
+		try {
+			while (in.position < bytes.length) {
+				int start = in.position;
+				int document = in.readVarint();
+				int sentence = in.readVarint();
+				int length = in.readVarint();
+				if (length < 0 || length > bytes.length - in.position - 4) {
+					break;
+				}
+				String text = new String(bytes, in.position, length, "UTF-8");
+				in.position += length;
+				checksum.reset();
+				checksum.update(bytes, start, in.position - start);
+				if (in.readInt() != (int) checksum.getValue()) {
+					break;
+				}
+				replayer.replay(document, sentence, text);
+				records += 1;
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// a torn record at the end of the generation
+		}
+		return records;
+	}
+
+	/** A growable byte array with the varint and int encodings used by journal records. */
+	private static class Buffer {
+
+		byte[] bytes;
+		int length;
+		int position;
+
+		Buffer() {
+			this.bytes = new byte[4096];
+		}
+
+		Buffer(byte[] bytes) {
+			this.bytes = bytes;
+			this.length = bytes.length;
+		}
+
+		private void ensure(int n) {
+			if (length + n > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+			}
+		}
+
+		void write(byte[] b, int offset, int n) {
+			ensure(n);
+			System.arraycopy(b, offset, bytes, length, n);
+			length += n;
+		}
+
+		void writeVarint(int value) {
+			ensure(5);
+			while ((value & ~0x7F) != 0) {
+				bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte) value;
+		}
+
+		void writeInt(int value) {
+			ensure(4);
+			bytes[length++] = (byte) (value >>> 24);
+			bytes[length++] = (byte) (value >>> 16);
+			bytes[length++] = (byte) (value >>> 8);
+			bytes[length++] = (byte) value;
+		}
+
+		int readVarint() {
+			int value = 0;
+			for (int shift=0; shift<35; shift+=7) {
+				byte b = bytes[position++];
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new ArrayIndexOutOfBoundsException("Malformed varint");
+		}
+
+		int readInt() {
+			int value = ((bytes[position] & 0xFF) << 24) | ((bytes[position+1] & 0xFF) << 16) | ((bytes[position+2] & 0xFF) << 8) | (bytes[position+3] & 0xFF);
+			position += 4;
+			return value;
+		}
+
+	}
+
+}
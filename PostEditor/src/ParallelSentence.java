@@ -1,23 +1,35 @@
+import util.Vocabulary;
+
 public class ParallelSentence {
 
-	public final String[] sourceWords;
-	public final String[] targetWords; 
-	public final WordAlignment[] alignmentPoints;
+	private final Vocabulary sourceVocabulary;
+	private final Vocabulary targetVocabulary;
+	private final int[] sourceTokens;
+	private final int[] targetTokens;
+	/** Alignment points packed as consecutive (source index, target index) pairs. */
+	private final int[] alignmentPoints;
 //	public final String svgPath;
 	public final int sentenceNumber;
 	private String editedTranslation;
 	
-	public ParallelSentence(String editedTranslation, String[] sourceWords, String[] targetWords, String[] alignmentPoints, int sentenceNumber) {
-		this.sourceWords = sourceWords;
-		this.targetWords = targetWords;
+	/** Set when the edited translation changes, cleared when a save takes a snapshot of it. */
+	private boolean dirty;
+	private Corpus corpus;
+	private int documentNumber;
+	
+	/**
+	 * @param sourceTokens ids in <code>sourceVocabulary</code> of the source words
+	 * @param targetTokens ids in <code>targetVocabulary</code> of the machine translated words
+	 * @param alignmentPoints consecutive (source index, target index) pairs
+	 */
+	public ParallelSentence(String editedTranslation, Vocabulary sourceVocabulary, int[] sourceTokens, Vocabulary targetVocabulary, int[] targetTokens, int[] alignmentPoints, int sentenceNumber) {
+		this.sourceVocabulary = sourceVocabulary;
+		this.targetVocabulary = targetVocabulary;
+		this.sourceTokens = sourceTokens;
+		this.targetTokens = targetTokens;
 //		this.svgPath = svgPath;
 		this.sentenceNumber = sentenceNumber;
-		this.alignmentPoints = new WordAlignment[alignmentPoints.length];
-		for (int i=0, n=alignmentPoints.length; i<n; i+=1) {
-			String[] parts = alignmentPoints[i].split("-");
-				this.alignmentPoints[i] = new WordAlignment(Integer.valueOf(parts[0]), Integer.valueOf(parts[1]));
-			
-		}
+		this.alignmentPoints = alignmentPoints;
 //		StringBuilder textToEdit = new StringBuilder();
 //		for (String word : this.targetWords) {
 //			textToEdit.append(word);
@@ -28,28 +40,94 @@ public class ParallelSentence {
 		
 	}
 	
+	public int sourceLength() {
+		return sourceTokens.length;
+	}
+	
+	public int sourceToken(int index) {
+		return sourceTokens[index];
+	}
+	
+	public String sourceWord(int index) {
+		return sourceVocabulary.token(sourceTokens[index]);
+	}
+	
+	public int targetLength() {
+		return targetTokens.length;
+	}
+	
+	public int targetToken(int index) {
+		return targetTokens[index];
+	}
+	
+	public String targetWord(int index) {
+		return targetVocabulary.token(targetTokens[index]);
+	}
+	
+	public int alignmentCount() {
+		return alignmentPoints.length / 2;
+	}
+	
+	public int alignmentSource(int alignment) {
+		return alignmentPoints[2*alignment];
+	}
+	
+	public int alignmentTarget(int alignment) {
+		return alignmentPoints[2*alignment+1];
+	}
+	
 	public ParallelSentence setEditedTranslation(String editedTranslation) {
-		this.editedTranslation = editedTranslation;
+		boolean changed = false;
+		boolean becameDirty = false;
+		synchronized (this) {
+			if (!editedTranslation.equals(this.editedTranslation)) {
+				this.editedTranslation = editedTranslation;
+				changed = true;
+				becameDirty = !dirty;
+				dirty = true;
+			}
+		}
+		// Outside the lock on this sentence, since saving locks the corpus before its sentences
+		if (changed && corpus != null) {
+			corpus.edited(documentNumber, sentenceNumber, editedTranslation, becameDirty);
+		}
 		//System.err.println();
 		return this;
 	}
 	
-	public String getEditedTranslation() {
+	public synchronized String getEditedTranslation() {
 		return this.editedTranslation;
 	}
 	
+	/** Returns true if the edited translation has changed since a save last took a snapshot of it. */
+	public synchronized boolean isDirty() {
+		return dirty;
+	}
+	
+	/** Returns the edited translation for a save to write, and clears the dirty flag. */
+	synchronized String snapshot() {
+		this.dirty = false;
+		return this.editedTranslation;
+	}
+	
+	/** Reports edits to this sentence to <code>corpus</code>, which holds it as part of document <code>documentNumber</code>. */
+	void attach(Corpus corpus, int documentNumber) {
+		this.corpus = corpus;
+		this.documentNumber = documentNumber;
+	}
+	
 	public String toString() {
 		StringBuilder s = new StringBuilder();
 		
-		for (String sourceWord : sourceWords) {
-			s.append(sourceWord);
+		for (int i=0; i<sourceTokens.length; i+=1) {
+			s.append(sourceWord(i));
 			s.append(' ');
 		}
 		
 		s.append('\n');
 		
-		for (String targetWord : targetWords) {
-			s.append(targetWord);
+		for (int i=0; i<targetTokens.length; i+=1) {
+			s.append(targetWord(i));
 			s.append(' ');
 		}
 		
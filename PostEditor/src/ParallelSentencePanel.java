@@ -1,52 +1,485 @@
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.util.ArrayList;
-import java.util.List;
+import java.awt.event.MouseEvent;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.Path2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
-import javax.swing.JLabel;
+import javax.swing.JComponent;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.UIManager;
+import javax.swing.event.MouseInputAdapter;
+import javax.swing.text.JTextComponent;
+
+import util.LoggedComponent;
 
 
 @SuppressWarnings("serial")
-public class ParallelSentencePanel extends JPanel {
+public class ParallelSentencePanel extends JPanel implements LoggedComponent {
 	
-	private class WordLabel extends JLabel {
-		
-		private final Provenance provenance;
-		private final int wordNumber;
-		
-		public WordLabel(Provenance provenance, String label, int wordNumber, PostEditor postEditor) {
-			super(label);
-			this.provenance = provenance;
-			this.wordNumber = wordNumber;
+	/**
+	 * The source and target rows of the sentence and the alignments between them, painted by one component
+	 * in place of a label for every word.
+	 * <p>
+	 * The rows are laid out as a centred {@link java.awt.FlowLayout} would lay out labels of the words,
+	 * and each row is drawn from one glyph vector, made the first time it is painted unless a {@link Layout} made in advance has it.
+	 * The alignments are drawn from one path, kept until the words or the width of the view change,
+	 * or copied from an image of them that a {@link Layout} drew in advance;
+	 * a repaint draws only the rows and the alignments that meet its clip, so typing in the edit field,
+	 * which repaints only the field, never draws them.
+	 * To the {@link util.EventLogger}, the view describes itself as the word under the mouse, just as that word's label did,
+	 * and as the sentence panel elsewhere; moving from word to word logs the exits and entries that the labels had.
+	 */
+	private class SentenceView extends JComponent implements LoggedComponent {
+
+		/** Gap between rows, as between the source and target panels. */
+		private static final int ROW_GAP = 20;
+
+		private final PostEditor postEditor;
+
+		/** The words of each row, in arrays that are kept while they are long enough for the sentences bound. */
+		private final String[][] words;
+		private final int[] lengths;
+		/** Offset of each word from the left of its row, then the row's width; measured with {@link #layoutFont}. */
+		private final int[][] offsets;
+		private final int[][] widths;
+		/** The words of each row as one run of glyphs, placed at their offsets; made when the row is first painted. */
+		private final GlyphVector[] glyphs;
+		private final byte[][][] wordContexts;
+		/** Lines from the bottom middle of each aligned source word to the top middle of its target word. */
+		private final Path2D alignments;
+		private Rectangle alignmentBounds;
+		/** The alignments already drawn, at {@link #alignmentBounds}, if a {@link Layout} had them; otherwise null. */
+		private BufferedImage alignmentImage;
+		/** Width of the view when {@link #alignments} was made, or -1 if it must be made again. */
+		private int alignmentsWidth;
+		private Font layoutFont;
+		private int ascent;
+		private int rowHeight;
+
+		/** Row and word under the mouse, or -1. */
+		private int hoveredRow = -1;
+		private int hoveredWord = -1;
+
+		SentenceView(final PostEditor postEditor) {
+			this.postEditor = postEditor;
+			this.words = new String[][]{ new String[0], new String[0] };
+			this.lengths = new int[2];
+			this.offsets = new int[][]{ new int[1], new int[1] };
+			this.widths = new int[][]{ new int[0], new int[0] };
+			this.glyphs = new GlyphVector[2];
+			this.wordContexts = new byte[][][]{ new byte[0][], new byte[0][] };
+			this.alignments = new Path2D.Float();
+
+			this.setFont(UIManager.getFont("Label.font"));
+			this.setForeground(UIManager.getColor("Label.foreground"));
+
 			if (postEditor != null) {
+				// Registered before the logger, so that it sees the word under the mouse
+				MouseInputAdapter hover = new MouseInputAdapter() {
+					@Override
+					public void mouseEntered(MouseEvent e) {
+						hover(e, false);
+					}
+
+					@Override
+					public void mouseMoved(MouseEvent e) {
+						hover(e, true);
+					}
+
+					@Override
+					public void mousePressed(MouseEvent e) {
+						hover(e, true);
+					}
+				};
+				this.addMouseListener(hover);
+				this.addMouseMotionListener(hover);
 				this.addMouseListener(postEditor.listener);
 				this.addMouseMotionListener(postEditor.listener);
-				this.addKeyListener(postEditor.listener);
 			}
 		}
-		
+
+		/**
+		 * Shows the words of <code>parallelSentence</code>, reusing the arrays of the last sentence where they are long enough,
+		 * and taking their measurements, glyphs and alignments from <code>layout</code> if it is not null and is in the view's font.
+		 */
+		void bind(ParallelSentence parallelSentence, Layout layout) {
+			bind(SOURCE, parallelSentence.sourceLength());
+			for (int index=0; index<lengths[SOURCE]; index+=1) {
+				words[SOURCE][index] = parallelSentence.sourceWord(index);
+			}
+			bind(TARGET, parallelSentence.targetLength());
+			for (int index=0; index<lengths[TARGET]; index+=1) {
+				words[TARGET][index] = parallelSentence.targetWord(index);
+			}
+			hoveredRow = -1;
+			hoveredWord = -1;
+			layoutFont = null;
+			alignmentImage = null;
+			if (layout != null && layout.font.equals(getFont())) {
+				adopt(layout);
+			}
+			invalidate();
+			repaint();
+		}
+
+		private void bind(int row, int length) {
+			if (words[row].length < length) {
+				words[row] = new String[length];
+				offsets[row] = new int[length + 1];
+				widths[row] = new int[length];
+				wordContexts[row] = new byte[length][];
+			} else {
+				Arrays.fill(words[row], length, words[row].length, null);
+				Arrays.fill(wordContexts[row], null);
+			}
+			lengths[row] = length;
+			glyphs[row] = null;
+		}
+
+		private void adopt(Layout layout) {
+			for (int row=SOURCE; row<=TARGET; row+=1) {
+				System.arraycopy(layout.offsets[row], 0, offsets[row], 0, lengths[row] + 1);
+				System.arraycopy(layout.widths[row], 0, widths[row], 0, lengths[row]);
+				glyphs[row] = layout.glyphs[row];
+			}
+			ascent = layout.ascent;
+			rowHeight = layout.rowHeight;
+			layoutFont = getFont();
+			alignments.reset();
+			alignments.append(layout.alignments, false);
+			alignmentBounds = layout.alignmentBounds;
+			alignmentImage = layout.alignmentImage;
+			alignmentsWidth = layout.width;
+		}
+
+		/** Moves the hovered word to the one under the mouse, logging the exit and entry as the labels would have if <code>log</code>. */
+		private void hover(MouseEvent e, boolean log) {
+			int row = rowAt(e.getY());
+			int word = (row < 0) ? -1 : wordAt(row, e.getX());
+			if (word < 0) {
+				row = -1;
+			}
+			if (row == hoveredRow && word == hoveredWord) {
+				return;
+			}
+			if (log && hoveredWord >= 0) {
+				postEditor.listener.mouseExited(crossing(e, MouseEvent.MOUSE_EXITED));
+			}
+			hoveredRow = row;
+			hoveredWord = word;
+			if (log && hoveredWord >= 0) {
+				postEditor.listener.mouseEntered(crossing(e, MouseEvent.MOUSE_ENTERED));
+			}
+		}
+
+		private MouseEvent crossing(MouseEvent e, int id) {
+			return new MouseEvent(this, id, e.getWhen(), e.getModifiersEx(), e.getX(), e.getY(), e.getXOnScreen(), e.getYOnScreen(), 0, false, MouseEvent.NOBUTTON);
+		}
+
+		/** The row under <code>y</code>, or -1. */
+		private int rowAt(int y) {
+			layoutWords();
+			if (y >= 0 && y < rowHeight) {
+				return SOURCE;
+			} else if (y >= rowHeight + ROW_GAP && y < 2*rowHeight + ROW_GAP) {
+				return TARGET;
+			} else {
+				return -1;
+			}
+		}
+
+		/** The word of <code>row</code> under <code>x</code>, or -1 if there is none. */
+		private int wordAt(int row, int x) {
+			int offset = x - rowX(row);
+			int[] starts = offsets[row];
+			int low = 0;
+			int high = lengths[row] - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (offset < starts[middle]) {
+					high = middle - 1;
+				} else if (offset >= starts[middle] + widths[row][middle]) {
+					low = middle + 1;
+				} else {
+					return middle;
+				}
+			}
+			return -1;
+		}
+
+		/** Left of <code>row</code>, which is centred in the view as a {@link BoxLayout} would centre it. */
+		private int rowX(int row) {
+			return getWidth()/2 - rowWidth(row)/2;
+		}
+
+		private int rowWidth(int row) {
+			return offsets[row][lengths[row]];
+		}
+
+		private int rowY(int row) {
+			return (row == SOURCE) ? 0 : rowHeight + ROW_GAP;
+		}
+
+		/** Measures the words, if the font has changed since they were last measured. */
+		private void layoutWords() {
+			Font font = getFont();
+			if (font == layoutFont) {
+				return;
+			}
+			FontMetrics metrics = getFontMetrics(font);
+			for (int row=SOURCE; row<=TARGET; row+=1) {
+				measure(words[row], lengths[row], metrics, offsets[row], widths[row]);
+				glyphs[row] = null;
+			}
+			ascent = metrics.getAscent();
+			rowHeight = metrics.getHeight() + 2*WORD_GAP;
+			layoutFont = font;
+			alignmentsWidth = -1;
+		}
+
+		/** Makes the path of the alignments, if the words or the width of the view have changed since it was made. */
+		private void layoutAlignments() {
+			if (alignmentsWidth == getWidth()) {
+				return;
+			}
+			alignmentBounds = trace(alignments, parallelSentence, offsets, widths, rowX(SOURCE), rowX(TARGET), rowHeight);
+			alignmentImage = null;
+			alignmentsWidth = getWidth();
+		}
+
+		@Override
+		public Dimension getPreferredSize() {
+			if (isPreferredSizeSet()) {
+				return super.getPreferredSize();
+			}
+			layoutWords();
+			return new Dimension(Math.max(rowWidth(SOURCE), rowWidth(TARGET)), 2*rowHeight + ROW_GAP);
+		}
+
+		@Override
+		public Dimension getMinimumSize() {
+			return getPreferredSize();
+		}
+
+		@Override
+		protected void paintComponent(Graphics g) {
+			layoutWords();
+			Graphics2D g2 = (Graphics2D) g;
+			Map<?,?> desktopHints = (Map<?,?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+			if (desktopHints != null) {
+				g2.addRenderingHints(desktopHints);
+			}
+			FontRenderContext context = getFontMetrics(layoutFont).getFontRenderContext();
+			Rectangle clip = g2.getClipBounds();
+			if (clip == null) {
+				clip = new Rectangle(0, 0, getWidth(), getHeight());
+			}
+
+			for (int row=SOURCE; row<=TARGET; row+=1) {
+				int x = rowX(row);
+				int y = rowY(row);
+				if (!clip.intersects(x, y, rowWidth(row), rowHeight)) {
+					continue;
+				}
+				g2.setColor(Color.WHITE);
+				g2.fillRect(x, y, rowWidth(row), rowHeight);
+				g2.setColor(getForeground());
+				if (glyphs[row] == null) {
+					glyphs[row] = glyphRun(words[row], lengths[row], offsets[row], layoutFont, context);
+				}
+				g2.drawGlyphVector(glyphs[row], x, y + WORD_GAP + ascent);
+			}
+
+			layoutAlignments();
+			if (clip.intersects(alignmentBounds)) {
+				// The image is drawn at one pixel per unit, so is no use on a scaled display
+				if (alignmentImage != null && (g2.getTransform().getType() & ~AffineTransform.TYPE_TRANSLATION) == 0) {
+					g2.drawImage(alignmentImage, alignmentBounds.x, alignmentBounds.y, null);
+				} else {
+					drawAlignments(g2, alignments);
+				}
+			}
+		}
+
 		public String toString() {
-			//return ""+this.provenance+" word " + this.wordNumber + " of parallel sentence " + ParallelSentencePanel.this.sentenceNumber + " of document " + ParallelSentencePanel.this.documentNumber;
-			return formatString(this.provenance, Integer.toString(this.wordNumber), this.getText());
+			if (hoveredWord < 0) {
+				return ParallelSentencePanel.this.toString();
+			}
+			return formatString(PROVENANCES[hoveredRow], Integer.toString(hoveredWord), words[hoveredRow][hoveredWord]);
+		}
+
+		/** The context of the word under the mouse, or of the sentence panel if there is none. */
+		@Override
+		public byte[] logContext() {
+			if (hoveredWord < 0) {
+				return ParallelSentencePanel.this.logContext();
+			}
+			byte[][] contexts = wordContexts[hoveredRow];
+			if (contexts[hoveredWord] == null) {
+				contexts[hoveredWord] = utf8(toString());
+			}
+			return contexts[hoveredWord];
+		}
+
+		@Override
+		public JTextComponent loggedText() {
+			return null;
 		}
 	}
 	
-	private class EditField extends JTextField {
+	/**
+	 * The measurements, glyphs and alignments of a sentence as a {@link SentenceView} as wide as the sentence would make them,
+	 * and optionally the alignments drawn, which is most of the work of painting the view.
+	 * A layout can be made on any thread, so that a view bound to the sentence with it has only to copy it.
+	 */
+	static final class Layout {
+		final Font font;
+		final int[][] offsets;
+		final int[][] widths;
+		final GlyphVector[] glyphs;
+		final Path2D alignments;
+		final Rectangle alignmentBounds;
+		final BufferedImage alignmentImage;
+		final int ascent;
+		final int rowHeight;
+		final int width;
+
+		/**
+		 * Lays out <code>parallelSentence</code> in the font of <code>metrics</code>, which must be those of a {@link SentenceView},
+		 * and draws its alignments if <code>draw</code>.
+		 */
+		Layout(ParallelSentence parallelSentence, FontMetrics metrics, boolean draw) {
+			this.font = metrics.getFont();
+			String[][] words = { new String[parallelSentence.sourceLength()], new String[parallelSentence.targetLength()] };
+			for (int index=0; index<words[SOURCE].length; index+=1) {
+				words[SOURCE][index] = parallelSentence.sourceWord(index);
+			}
+			for (int index=0; index<words[TARGET].length; index+=1) {
+				words[TARGET][index] = parallelSentence.targetWord(index);
+			}
+			this.offsets = new int[2][];
+			this.widths = new int[2][];
+			this.glyphs = new GlyphVector[2];
+			for (int row=SOURCE; row<=TARGET; row+=1) {
+				int length = words[row].length;
+				offsets[row] = new int[length + 1];
+				widths[row] = new int[length];
+				measure(words[row], length, metrics, offsets[row], widths[row]);
+				glyphs[row] = glyphRun(words[row], length, offsets[row], font, metrics.getFontRenderContext());
+			}
+			this.ascent = metrics.getAscent();
+			this.rowHeight = metrics.getHeight() + 2*WORD_GAP;
+			int sourceWidth = offsets[SOURCE][words[SOURCE].length];
+			int targetWidth = offsets[TARGET][words[TARGET].length];
+			this.width = Math.max(sourceWidth, targetWidth);
+			this.alignments = new Path2D.Float();
+			this.alignmentBounds = trace(alignments, parallelSentence, offsets, widths, width/2 - sourceWidth/2, width/2 - targetWidth/2, rowHeight);
+			if (draw && parallelSentence.alignmentCount() > 0) {
+				this.alignmentImage = new BufferedImage(alignmentBounds.width, alignmentBounds.height, BufferedImage.TYPE_INT_ARGB_PRE);
+				Graphics2D g2 = alignmentImage.createGraphics();
+				g2.translate(-alignmentBounds.x, -alignmentBounds.y);
+				drawAlignments(g2, alignments);
+				g2.dispose();
+			} else {
+				this.alignmentImage = null;
+			}
+		}
+	}
+
+	/** Sets the offset of each of the first <code>length</code> words from the left of their row, then the row's width, and each word's width. */
+	private static void measure(String[] words, int length, FontMetrics metrics, int[] offsets, int[] widths) {
+		int x = WORD_GAP;
+		for (int index=0; index<length; index+=1) {
+			offsets[index] = x;
+			widths[index] = metrics.stringWidth(words[index]);
+			x += widths[index] + WORD_GAP;
+		}
+		offsets[length] = x;
+	}
+
+	/** Makes the glyphs of the first <code>length</code> words as one run, each word moved to its offset. */
+	private static GlyphVector glyphRun(String[] words, int length, int[] offsets, Font font, FontRenderContext context) {
+		StringBuilder text = new StringBuilder();
+		int[] starts = new int[length];
+		for (int index=0; index<length; index+=1) {
+			starts[index] = text.length();
+			text.append(words[index]);
+		}
+
+		GlyphVector run = font.createGlyphVector(context, text.toString());
+		int n = run.getNumGlyphs();
+		float[] positions = run.getGlyphPositions(0, n, null);
+		Point2D.Float position = new Point2D.Float();
+		int word = 0;
+		int shifted = -1;
+		float shift = 0;
+		for (int glyph=0; glyph<n; glyph+=1) {
+			int character = run.getGlyphCharIndex(glyph);
+			while (word+1 < starts.length && character >= starts[word+1]) {
+				word += 1;
+			}
+			if (word != shifted) {
+				shift = offsets[word] - positions[2*glyph];
+				shifted = word;
+			}
+			position.setLocation(positions[2*glyph] + shift, positions[2*glyph+1]);
+			run.setGlyphPosition(glyph, position);
+		}
+		return run;
+	}
+
+	/**
+	 * Replaces <code>path</code> with lines from the bottom middle of each aligned source word to the top middle of its target word,
+	 * the rows starting at <code>sourceX</code> and <code>targetX</code>, and returns the bounds of the lines as drawn.
+	 */
+	private static Rectangle trace(Path2D path, ParallelSentence parallelSentence, int[][] offsets, int[][] widths, int sourceX, int targetX, int rowHeight) {
+		int sourceBottom = rowHeight - WORD_GAP;
+		int targetTop = rowHeight + SentenceView.ROW_GAP + WORD_GAP;
+		path.reset();
+		for (int a=0, n=parallelSentence.alignmentCount(); a<n; a+=1) {
+			int source = parallelSentence.alignmentSource(a);
+			int target = parallelSentence.alignmentTarget(a);
+			path.moveTo(sourceX + offsets[SOURCE][source] + widths[SOURCE][source]/2, sourceBottom);
+			path.lineTo(targetX + offsets[TARGET][target] + widths[TARGET][target]/2, targetTop);
+		}
+		// Grown by the width of the antialiased edge, which stroke normalization can move by a fraction of a pixel
+		Rectangle bounds = path.getBounds();
+		bounds.grow(2, 2);
+		return bounds;
+	}
+
+	private static void drawAlignments(Graphics2D g2, Path2D alignments) {
+		g2.setColor(Color.BLACK);
+		g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g2.draw(alignments);
+	}
+
+	private class EditField extends JTextField implements LoggedComponent {
+		private byte[] logContext;
+
 		public EditField(PostEditor postEditor) {
 			super();
 			if (postEditor != null) {
@@ -61,6 +494,19 @@ public class ParallelSentencePanel extends JPanel {
 			String wordNumber = (this.getSelectedText()==null) ? Integer.toString(this.getCaretPosition()) : Integer.toString(this.getSelectionStart())+"-"+Integer.toString(this.getSelectionEnd());
 			return formatString(Provenance.Field, wordNumber, this.getText());
 		}
+
+		@Override
+		public byte[] logContext() {
+			if (logContext == null) {
+				logContext = utf8(formatContext(Provenance.Field));
+			}
+			return logContext;
+		}
+
+		@Override
+		public JTextComponent loggedText() {
+			return this;
+		}
 	}
 	
 	public String formatString(Provenance provenance) {
@@ -68,63 +514,75 @@ public class ParallelSentencePanel extends JPanel {
 	}
 	
 	public String formatString(Provenance provenance, String wordNumber, String text) {
-		return "" + this.documentNumber + "\t" + this.sentenceNumber + "\t" + provenance.toString() + "\t" + (wordNumber==null ? "" : wordNumber) + "\t" + text;
+		return formatContext(provenance) + (wordNumber==null ? "" : wordNumber) + "\t" + text;
+	}
+	
+	/** The leading fields of {@link #formatString}, which do not change for a component. */
+	private String formatContext(Provenance provenance) {
+		return "" + this.documentNumber + "\t" + this.sentenceNumber + "\t" + provenance.toString() + "\t";
+	}
+	
+	private static byte[] utf8(String s) {
+		return s.getBytes(Charset.forName("UTF-8"));
 	}
 	
-	private final List<WordLabel> sourceWords;
-	private final List<WordLabel> targetWords;
-	private final List<WordAlignment> wordAlignments;
+	/** Horizontal and vertical gap around each word, as a {@link java.awt.FlowLayout} leaves. */
+	static final int WORD_GAP = 5;
 	
-	private final JPanel sourcePanel;
-	private final JPanel targetPanel;
+	private static final int SOURCE = 0;
+	private static final int TARGET = 1;
+	private static final Provenance[] PROVENANCES = { Provenance.Source, Provenance.Target };
+	
+	private ParallelSentence parallelSentence;
+	
+	private final SentenceView sentenceView;
 	
 	private final EditField editableArea;
+	private final PostEditor postEditor;
 	
-	final int sentenceNumber;
-	final int documentNumber;
+	int sentenceNumber;
+	int documentNumber;
 	
 	public String toString() {
 		return formatString(Provenance.Panel);
 	}
 	
-	public ParallelSentencePanel(final ParallelSentence parallelSentence, final PostEditor postEditor) {
+	private byte[] logContext;
+	
+	@Override
+	public byte[] logContext() {
+		if (logContext == null) {
+			logContext = utf8(toString());
+		}
+		return logContext;
+	}
+	
+	@Override
+	public JTextComponent loggedText() {
+		return null;
+	}
+	
+	public ParallelSentencePanel(ParallelSentence parallelSentence, final PostEditor postEditor) {
+		this(parallelSentence, null, postEditor);
+	}
+	
+	/** Makes a panel for <code>parallelSentence</code>, laid out as <code>layout</code> if it is not null. */
+	ParallelSentencePanel(ParallelSentence parallelSentence, Layout layout, final PostEditor postEditor) {
 		if (postEditor != null) {
 			this.addMouseListener(postEditor.listener);
 			this.addMouseMotionListener(postEditor.listener);
 			this.addKeyListener(postEditor.listener);
-			this.documentNumber = postEditor.getDocumentNumber();
-		} else {
-			this.documentNumber = -1;
-		}
-		if (parallelSentence != null) {
-			this.sentenceNumber = parallelSentence.sentenceNumber;
-		} else {
-			this.sentenceNumber = -1;
-		}
-		this.sourceWords = new ArrayList<WordLabel>();
-		this.targetWords = new ArrayList<WordLabel>();
-		this.wordAlignments = new ArrayList<WordAlignment>();
+		}
+		this.postEditor = postEditor;
 		
-		this.sourcePanel = new JPanel();
-		this.targetPanel = new JPanel();
+		this.sentenceView = new SentenceView(postEditor);
 		
 		this.editableArea = new EditField(postEditor);
 
-		for (int index=0; index<parallelSentence.sourceWords.length; index+=1) {
-			this.sourceWords.add(new WordLabel(Provenance.Source, parallelSentence.sourceWords[index], index, postEditor));
-		}
-
-//		StringBuilder textToEdit = new StringBuilder();
-		for (int index=0; index<parallelSentence.targetWords.length; index+=1) {
-			this.targetWords.add(new WordLabel(Provenance.Target, parallelSentence.targetWords[index], index, postEditor));
-//			textToEdit.append(word);
-//			textToEdit.append(" ");
-		}
-		String previouslyEditedText = parallelSentence.getEditedTranslation();
 //		if (previouslyEditedText==null || previouslyEditedText.isEmpty()) {
 //			this.editableArea.setText(textToEdit.toString().trim());
 //		} else {
-			this.editableArea.setText(previouslyEditedText);
+//			this.editableArea.setText(previouslyEditedText);
 //		}
 //		this.editableArea.addActionListener(new ActionListener() {
 //
@@ -139,7 +597,7 @@ public class ParallelSentencePanel extends JPanel {
 
 				@Override
 				public void actionPerformed(ActionEvent arg0) {
-					parallelSentence.setEditedTranslation(editableArea.getText());
+					updateEditedTranslation();
 				}
 
 			});
@@ -148,17 +606,17 @@ public class ParallelSentencePanel extends JPanel {
 
 				@Override
 				public void keyPressed(KeyEvent arg0) {
-					parallelSentence.setEditedTranslation(editableArea.getText());
+					updateEditedTranslation();
 				}
 
 				@Override
 				public void keyReleased(KeyEvent arg0) {
-					parallelSentence.setEditedTranslation(editableArea.getText());
+					updateEditedTranslation();
 				}
 
 				@Override
 				public void keyTyped(KeyEvent arg0) {
-					parallelSentence.setEditedTranslation(editableArea.getText());
+					updateEditedTranslation();
 				}
 				
 				
@@ -168,82 +626,62 @@ public class ParallelSentencePanel extends JPanel {
 
 			@Override
 			public void focusGained(FocusEvent arg0) {
-				parallelSentence.setEditedTranslation(editableArea.getText());
-				postEditor.setSentenceNumber(parallelSentence.sentenceNumber);
-//				ParallelSentencePanel.this.scrollRectToVisible(ParallelSentencePanel.this.getBounds());
+				updateEditedTranslation();
+				postEditor.setSentenceNumber(sentenceNumber);
+				// Bring the sentence into view, so that the panels of the next sentences are built for Tab to reach
+				ParallelSentencePanel.this.scrollRectToVisible(new Rectangle(0, 0, getWidth(), getHeight()));
 			}
 
 			@Override
 			public void focusLost(FocusEvent arg0) {
-				parallelSentence.setEditedTranslation(editableArea.getText());
+				updateEditedTranslation();
 			}
 
 			
 		});
 		
-		for (WordAlignment a : parallelSentence.alignmentPoints) {
-			this.wordAlignments.add(a);
-		} 	
-
-		for (JLabel sourceWord : this.sourceWords) {
-			this.sourcePanel.add(sourceWord);
-		}
-
-		for (JLabel targetWord : this.targetWords) {
-			this.targetPanel.add(targetWord);
-		}
-		
-		this.sourcePanel.setBackground(Color.WHITE);
-		this.targetPanel.setBackground(Color.WHITE);
-
-		this.sourcePanel.setMaximumSize(this.sourcePanel.getMinimumSize());
-		this.targetPanel.setMaximumSize(this.targetPanel.getMinimumSize());
-		
 		this.setLayout(new BoxLayout(this, BoxLayout.PAGE_AXIS));
-		this.add(this.sourcePanel);
-		this.add(Box.createRigidArea(new Dimension(0,20)));
-		this.add(this.targetPanel);
+		this.add(this.sentenceView);
 		this.add(Box.createRigidArea(new Dimension(0,10)));
 		this.add(this.editableArea);
 		this.add(Box.createRigidArea(new Dimension(0,15)));
-		this.setMaximumSize(this.getMinimumSize());
+		
+		this.bind(parallelSentence, layout);
 	}
 	
+	/**
+	 * Shows <code>parallelSentence</code>, of the post editor's current document, in place of the sentence shown now.
+	 * The components and their listeners are kept, so that a panel can be reused for any sentence.
+	 * If <code>layout</code> is not null, it is the sentence's {@link Layout}, which spares the panel measuring the words.
+	 */
+	void bind(ParallelSentence parallelSentence, Layout layout) {
+		this.parallelSentence = parallelSentence;
+		this.sentenceNumber = parallelSentence.sentenceNumber;
+		this.documentNumber = (postEditor != null) ? postEditor.getDocumentNumber() : -1;
+		this.logContext = null;
+		this.editableArea.logContext = null;
+		
+		this.sentenceView.bind(parallelSentence, layout);
+		this.editableArea.setText(parallelSentence.getEditedTranslation());
+		
+		this.sentenceView.setMaximumSize(this.sentenceView.getMinimumSize());
+		this.invalidate();
+		this.setMaximumSize(this.getMinimumSize());
+	}
 	
+	/** Metrics of the font in which the words of the sentence are shown, to make a {@link Layout} with. */
+	FontMetrics wordMetrics() {
+		return sentenceView.getFontMetrics(sentenceView.getFont());
+	}
 	
-	
-	public void paint(Graphics g) {
-		super.paint(g);
-		g.setColor(Color.BLACK);
-
-		((Graphics2D) g).setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-		
-		for (WordAlignment a : wordAlignments) {
-			
-//			System.err.println("Document " + documentNumber + ", sentence " + sentenceNumber + ", drawing alignment from source word " + a.sourceIndex + " to target word " + a.targetIndex);
-
-			JLabel source = sourceWords.get(a.sourceIndex);
-			JLabel target = targetWords.get(a.targetIndex);
-
-			Rectangle sourceBounds = source.getBounds();
-			Rectangle targetBounds = target.getBounds();
-
-			Point sourcePoint = sourcePanel.getLocation();
-			Point targetPoint = targetPanel.getLocation();
-
-			g.drawLine(
-					sourcePoint.x + sourceBounds.x + sourceBounds.width/2, 
-					sourcePoint.y + sourceBounds.y + sourceBounds.height, 
-					targetPoint.x + targetBounds.x + targetBounds.width/2, 
-					targetPoint.y + targetBounds.y
-			);
-
-//			g.drawLine(sourceBounds.x + sourceBounds.width/2, 
-//					sourceBounds.y + sourceBounds.height, 
-//					targetBounds.x + targetBounds.width/2, 
-//					targetBounds.y);
-
-			
+	/** Copies the edit field into the sentence, and reports the edit to the post editor if the text changed. */
+	private void updateEditedTranslation() {
+		String text = editableArea.getText();
+		if (!text.equals(parallelSentence.getEditedTranslation())) {
+			parallelSentence.setEditedTranslation(text);
+			if (postEditor != null) {
+				postEditor.editActivity();
+			}
 		}
 	}
 	
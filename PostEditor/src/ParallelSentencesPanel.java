@@ -1,27 +1,441 @@
+import java.awt.Component;
+import java.awt.Container;
 import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.KeyboardFocusManager;
 import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JTextField;
+import javax.swing.JViewport;
 import javax.swing.Scrollable;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
+import util.Vocabulary;
 
+
+/**
+ * The sentences of one document, one above the other, of which only those in or near the viewport
+ * have a {@link ParallelSentencePanel}.
+ * <p>
+ * Every sentence has a height and width: estimated from {@link #singleSentenceDimension} and the widths of its words
+ * until its panel is first built, then measured. The panel's preferred size, and so the scroll bars, come from these,
+ * and each time the viewport moves the sentences it intersects, and {@link #OVERSCAN} more either side, are laid out.
+ * Panels that leave that range are removed but kept in a small cache, so scrolling back does not rebuild them,
+ * except for the panel holding the keyboard focus, which stays laid out wherever it is.
+ * <p>
+ * A panel is built only when no other can be reused: a sentence that needs one takes a panel left over from an earlier document,
+ * or else the one least recently scrolled out, and {@linkplain ParallelSentencePanel#bind binds} it to the sentence.
+ * Moving from document to document therefore builds no panels once there are enough to fill the viewport.
+ * <p>
+ * The documents either side of the one shown can be {@linkplain #prefetch prefetched}: a background thread parses them,
+ * estimates the size of every sentence and makes each sentence's {@link ParallelSentencePanel.Layout},
+ * drawing the alignments of the sentences that would be in the viewport as it is now,
+ * so that showing one of them only binds panels to sentences that are already measured and shaped,
+ * and paints them mostly by copying images.
+ */
 @SuppressWarnings("serial")
 public class ParallelSentencesPanel extends JPanel implements Scrollable {
 
+	/** Sentences laid out above and below those in the viewport. */
+	static final int OVERSCAN = 2;
+
+	/** Panels kept for sentences scrolled out of the viewport. */
+	private static final int CACHED_PANELS = 32;
+
+	/** Number of documents either side of the current one to prefetch; 0 turns prefetching off. Defaults to 1. */
+	public static final String PREFETCH_PROPERTY = "posteditor.prefetch";
+
 	private final Dimension singleSentenceDimension;
 	private final Dimension maxDimension;
-	
+
+	private final FontMetrics labelMetrics;
+	private final FontMetrics fieldMetrics;
+	private final int fieldInsets;
+	/** Metrics of the words of a sentence panel, from which layouts are made. */
+	private final FontMetrics wordMetrics;
+
+	private TranslatedDocument document;
+	private PostEditor postEditor;
+
+	/** Height and width of each sentence, estimated or measured. */
+	private int[] heights;
+	private int[] widths;
+	private boolean[] measured;
+	/** Offset of the top of each sentence, and of the bottom of the last. */
+	private int[] tops;
+	private int maxWidth;
+	/** Layout of each sentence, if the document was prefetched; otherwise null. */
+	private ParallelSentencePanel.Layout[] layouts;
+
+	/** Sentences in the panel, by index. */
+	private final Map<Integer,ParallelSentencePanel> laidOut;
+	/** Sentences scrolled out, by index, least recently used first. */
+	private final LinkedHashMap<Integer,ParallelSentencePanel> cached;
+	/** Panels of earlier documents, to be bound to sentences of this one. */
+	private final ArrayDeque<ParallelSentencePanel> free;
+
+	private JViewport viewport;
+	private final ChangeListener viewportListener;
+
+	private final ExecutorService prefetcher;
+	/** Documents to prefetch, and what has been prefetched of them; a document being prefetched maps to null. */
+	private final Map<TranslatedDocument,Prefetched> prefetched;
+	/** The documents of {@link #prefetched}, which the prefetcher checks before starting on a document. */
+	private volatile Set<TranslatedDocument> wanted;
+
 	public ParallelSentencesPanel() {
-		ParallelSentence dummy = new ParallelSentence("foo", new String[]{ "foo" }, new String[]{ "bar" }, new String[]{ "0-0" }, 0);
-		singleSentenceDimension = new ParallelSentencePanel(dummy,null).getPreferredSize();
-		
+		Vocabulary dummyVocabulary = new Vocabulary();
+		ParallelSentence dummy = new ParallelSentence("foo", dummyVocabulary, new int[]{ dummyVocabulary.id("foo") }, dummyVocabulary, new int[]{ dummyVocabulary.id("bar") }, new int[]{ 0, 0 }, 0);
+		ParallelSentencePanel dummyPanel = new ParallelSentencePanel(dummy,null);
+		singleSentenceDimension = dummyPanel.getPreferredSize();
+		wordMetrics = dummyPanel.wordMetrics();
+
 		JFrame dummyFrame = new JFrame();
 		dummyFrame.setExtendedState(dummyFrame.getExtendedState() | JFrame.MAXIMIZED_BOTH);
 		maxDimension = dummyFrame.getMaximumSize();
 //		System.err.println(maxDimension);
+
+		JLabel label = new JLabel();
+		JTextField field = new JTextField();
+		labelMetrics = label.getFontMetrics(label.getFont());
+		fieldMetrics = field.getFontMetrics(field.getFont());
+		fieldInsets = field.getInsets().left + field.getInsets().right + 1;
+
+		this.laidOut = new LinkedHashMap<Integer,ParallelSentencePanel>();
+		this.cached = new LinkedHashMap<Integer,ParallelSentencePanel>(CACHED_PANELS, 0.75f, true);
+		this.free = new ArrayDeque<ParallelSentencePanel>();
+		this.viewportListener = new ChangeListener() {
+			@Override
+			public void stateChanged(ChangeEvent event) {
+				layoutSentences();
+			}
+		};
+		this.setLayout(null);
+
+		this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Document prefetcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.prefetched = new HashMap<TranslatedDocument,Prefetched>();
+		this.wanted = Collections.emptySet();
+	}
+
+	/** The sizes and layouts of the sentences of a document, made in the background or kept from when the document was shown. */
+	private static class Prefetched {
+		final int[] heights;
+		final int[] widths;
+		final boolean[] measured;
+		final ParallelSentencePanel.Layout[] layouts;
+
+		Prefetched(int[] heights, int[] widths, boolean[] measured, ParallelSentencePanel.Layout[] layouts) {
+			this.heights = heights;
+			this.widths = widths;
+			this.measured = measured;
+			this.layouts = layouts;
+		}
+	}
+
+	/** Shows the sentences of <code>document</code>, whose panels report to <code>postEditor</code>. */
+	public void setDocument(TranslatedDocument document, PostEditor postEditor) {
+		this.removeAll();
+		this.free.addAll(laidOut.values());
+		this.free.addAll(cached.values());
+		this.laidOut.clear();
+		this.cached.clear();
+		if (this.layouts != null && this.document != document) {
+			// Kept, measurements and all, in case the next prefetch wants the document back
+			this.prefetched.put(this.document, new Prefetched(heights, widths, measured, layouts));
+		}
+		this.document = document;
+		this.postEditor = postEditor;
+
+		Prefetched prefetched = this.prefetched.remove(document);
+		if (prefetched == null) {
+			prefetched = estimate(document.sentences(), null, 0, -1);
+		}
+		this.heights = prefetched.heights;
+		this.widths = prefetched.widths;
+		this.measured = prefetched.measured;
+		this.layouts = prefetched.layouts;
+		int n = document.size();
+		this.tops = new int[n+1];
+		this.maxWidth = 0;
+		for (int i=0; i<n; i+=1) {
+			maxWidth = Math.max(maxWidth, widths[i]);
+			tops[i+1] = tops[i] + heights[i];
+		}
+
+		this.revalidate();
+		this.repaint();
+	}
+
+	/**
+	 * Prefetches <code>documents</code>, nearest first, in the background, and forgets those prefetched before that are not among them.
+	 * Must be called on the Event Dispatch Thread, like {@link #setDocument}.
+	 */
+	public void prefetch(List<TranslatedDocument> documents) {
+		this.prefetched.keySet().retainAll(documents);
+		this.wanted = Collections.unmodifiableSet(new HashSet<TranslatedDocument>(documents));
+		Rectangle visible = getVisibleRect();
+		final int top = visible.y;
+		final int bottom = visible.y + ((visible.height > 0) ? visible.height : maxDimension.height);
+		for (final TranslatedDocument document : documents) {
+			if (document == this.document || this.prefetched.containsKey(document)) {
+				continue;
+			}
+			this.prefetched.put(document, null);
+			this.prefetcher.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (!wanted.contains(document)) {
+						return;
+					}
+					int height = singleSentenceDimension.height;
+					final Prefetched result = estimate(document.prefetchSentences(), wordMetrics, top / height - OVERSCAN, bottom / height + OVERSCAN);
+					SwingUtilities.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							if (prefetched.containsKey(document)) {
+								prefetched.put(document, result);
+							}
+						}
+					});
+				}
+			});
+		}
+	}
+
+	/**
+	 * Estimates the size of every one of <code>sentences</code>,
+	 * and lays out each sentence in the font of <code>metrics</code> unless it is null,
+	 * drawing the alignments of sentences <code>first</code> to <code>last</code>.
+	 * Touches no component, so may run on any thread.
+	 */
+	private Prefetched estimate(List<ParallelSentence> sentences, FontMetrics metrics, int first, int last) {
+		int n = sentences.size();
+		int[] heights = new int[n];
+		int[] widths = new int[n];
+		ParallelSentencePanel.Layout[] layouts = (metrics == null) ? null : new ParallelSentencePanel.Layout[n];
+		for (int i=0; i<n; i+=1) {
+			ParallelSentence sentence = sentences.get(i);
+			heights[i] = singleSentenceDimension.height;
+			if (layouts == null) {
+				widths[i] = estimateWidth(sentence, rowWidth(sentence));
+			} else {
+				layouts[i] = new ParallelSentencePanel.Layout(sentence, metrics, i >= first && i <= last);
+				widths[i] = estimateWidth(sentence, layouts[i].width);
+			}
+		}
+		return new Prefetched(heights, widths, new boolean[n], layouts);
+	}
+
+	/** The wider of a sentence's rows, <code>rowWidth</code> wide, and the edit field's text, and no narrower than a one word sentence. */
+	private int estimateWidth(ParallelSentence sentence, int rowWidth) {
+		int field = fieldMetrics.stringWidth(sentence.getEditedTranslation()) + fieldInsets;
+		return Math.max(singleSentenceDimension.width, Math.max(field, rowWidth));
+	}
+
+	/** The width of the wider of a sentence's rows, as its {@link ParallelSentencePanel} would make them. */
+	private int rowWidth(ParallelSentence sentence) {
+		int gap = ParallelSentencePanel.WORD_GAP;
+		int source = gap;
+		for (int i=0, n=sentence.sourceLength(); i<n; i+=1) {
+			source += labelMetrics.stringWidth(sentence.sourceWord(i)) + gap;
+		}
+		int target = gap;
+		for (int i=0, n=sentence.targetLength(); i<n; i+=1) {
+			target += labelMetrics.stringWidth(sentence.targetWord(i)) + gap;
+		}
+		return Math.max(source, target);
+	}
+
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		Container parent = getParent();
+		if (parent instanceof JViewport) {
+			viewport = (JViewport) parent;
+			viewport.addChangeListener(viewportListener);
+		}
+	}
+
+	@Override
+	public void removeNotify() {
+		if (viewport != null) {
+			viewport.removeChangeListener(viewportListener);
+			viewport = null;
+		}
+		super.removeNotify();
+	}
+
+	@Override
+	public Dimension getPreferredSize() {
+		if (document == null) {
+			return new Dimension(0, 0);
+		}
+		return new Dimension(maxWidth, tops[tops.length-1]);
 	}
-	
+
+	@Override
+	public Dimension getMinimumSize() {
+		return getPreferredSize();
+	}
+
+	@Override
+	public void doLayout() {
+		layoutSentences();
+	}
+
+	/** Lays out the sentences near the visible part of the panel, building any that have no panel yet. */
+	private void layoutSentences() {
+		if (document == null) {
+			return;
+		}
+		Rectangle visible = getVisibleRect();
+		int first = Math.max(0, sentenceAt(visible.y) - OVERSCAN);
+		int last = Math.min(heights.length - 1, sentenceAt(visible.y + visible.height) + OVERSCAN);
+		int focused = focusedSentence();
+		boolean changed = false;
+
+		for (Iterator<Map.Entry<Integer,ParallelSentencePanel>> i = laidOut.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<Integer,ParallelSentencePanel> entry = i.next();
+			int sentence = entry.getKey();
+			if ((sentence < first || sentence > last) && sentence != focused) {
+				i.remove();
+				this.remove(entry.getValue());
+				cache(sentence, entry.getValue());
+				changed = true;
+			}
+		}
+
+		boolean resized = false;
+		for (int sentence=first; sentence<=last; sentence+=1) {
+			if (!laidOut.containsKey(sentence)) {
+				ParallelSentencePanel panel = cached.remove(sentence);
+				if (panel == null) {
+					ParallelSentencePanel.Layout layout = (layouts == null) ? null : layouts[sentence];
+					panel = reusablePanel(first, last);
+					if (panel == null) {
+						panel = new ParallelSentencePanel(document.get(sentence), layout, postEditor);
+					} else {
+						panel.bind(document.get(sentence), layout);
+					}
+				}
+				laidOut.put(sentence, panel);
+				this.add(panel);
+				changed = true;
+			}
+			if (!measured[sentence]) {
+				resized |= measure(sentence, laidOut.get(sentence).getPreferredSize());
+			}
+		}
+
+		for (Map.Entry<Integer,ParallelSentencePanel> entry : laidOut.entrySet()) {
+			int sentence = entry.getKey();
+			ParallelSentencePanel panel = entry.getValue();
+			int x = Math.max(0, (getWidth() - widths[sentence]) / 2);
+			panel.setBounds(x, tops[sentence], widths[sentence], heights[sentence]);
+			panel.validate();
+		}
+
+		if (resized) {
+			revalidate();
+		}
+		if (changed || resized) {
+			repaint();
+		}
+	}
+
+	/** Records the size of a sentence's panel; returns true if it differs from the estimate. */
+	private boolean measure(int sentence, Dimension size) {
+		measured[sentence] = true;
+		if (size.height == heights[sentence] && size.width == widths[sentence]) {
+			return false;
+		}
+		int change = size.height - heights[sentence];
+		heights[sentence] = size.height;
+		widths[sentence] = size.width;
+		maxWidth = Math.max(maxWidth, size.width);
+		for (int i=sentence+1; i<tops.length; i+=1) {
+			tops[i] += change;
+		}
+		return true;
+	}
+
+	/**
+	 * A panel left from an earlier document, or else the one least recently scrolled out that is not for a sentence
+	 * from <code>first</code> to <code>last</code>, which are about to be laid out; null if there is none.
+	 */
+	private ParallelSentencePanel reusablePanel(int first, int last) {
+		if (!free.isEmpty()) {
+			return free.pop();
+		}
+		for (Iterator<Map.Entry<Integer,ParallelSentencePanel>> i = cached.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<Integer,ParallelSentencePanel> entry = i.next();
+			if (entry.getKey() < first || entry.getKey() > last) {
+				i.remove();
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	private void cache(int sentence, ParallelSentencePanel panel) {
+		cached.put(sentence, panel);
+		if (cached.size() > CACHED_PANELS) {
+			Iterator<ParallelSentencePanel> eldest = cached.values().iterator();
+			free.push(eldest.next());
+			eldest.remove();
+		}
+	}
+
+	/** The sentence that covers offset <code>y</code>, or the nearest one. */
+	private int sentenceAt(int y) {
+		int low = 0;
+		int high = heights.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (tops[middle] <= y) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/** The laid out sentence whose panel holds the keyboard focus, or -1. */
+	private int focusedSentence() {
+		Component owner = KeyboardFocusManager.getCurrentKeyboardFocusManager().getFocusOwner();
+		for (Map.Entry<Integer,ParallelSentencePanel> entry : laidOut.entrySet()) {
+			if (owner != null && SwingUtilities.isDescendingFrom(owner, entry.getValue())) {
+				return entry.getKey();
+			}
+		}
+		return -1;
+	}
+
 	@Override
 	public Dimension getPreferredScrollableViewportSize() {
 		return this.maxDimension;
@@ -7,23 +7,22 @@ import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.BufferedWriter;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 
-import javax.swing.BoxLayout;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
-import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.KeyStroke;
 import javax.swing.ScrollPaneLayout;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 import util.EventLogger;
 
@@ -38,7 +37,14 @@ public class PostEditor {
 //	private final JFrame targetTextFrame;
 	private final JFrame parallelSentenceFrame;
 
-	private final List<TranslatedDocument> translatedDocuments;
+	private final Corpus translatedDocuments;
+	
+	/** Null unless autosave is enabled with {@link AutosaveScheduler#IDLE_PROPERTY}. */
+	private final AutosaveScheduler autosave;
+	/** Waiting for a document that the corpus has not indexed yet, or null. */
+	private SwingWorker<Boolean,Void> pendingSwitch;
+	/** Documents either side of the current one that the sentences panel prefetches. */
+	private final int prefetch;
 
 //	private final JSVGCanvas svgCanvas;
 
@@ -62,18 +68,46 @@ public class PostEditor {
 	private final JMenuItem gotoDocument;
 //	private final JMenuItem displayParse;
 	
-	private final JPanel parallelSentencesPanel;
+	private final ParallelSentencesPanel parallelSentencesPanel;
 	
 	final EventLogger listener;
 	
 //	private final Map<Integer,List<ParallelSentencePanel>> parallelSentencePanels;
 //	
-	@SuppressWarnings("serial")
 	public PostEditor(String postEditedPath, String sourcePath, String targetPath, String alignmentsPath, String logPath, /*String svgListPath,*/ int startingDocumentNumber) throws UnsupportedEncodingException, IOException {
+		this(Boolean.getBoolean(Corpus.PROGRESSIVE_PROPERTY)
+				? Corpus.openProgressively(postEditedPath, sourcePath, targetPath, alignmentsPath, startingDocumentNumber - 1)
+				: Corpus.open(postEditedPath, sourcePath, targetPath, alignmentsPath /*, svgListPath*/),
+			postEditedPath, logPath, startingDocumentNumber);
+	}
+	
+	public PostEditor(String postEditedPath, String bundlePath, String logPath, int startingDocumentNumber) throws UnsupportedEncodingException, IOException {
+		this(Boolean.getBoolean(Corpus.PROGRESSIVE_PROPERTY)
+				? Corpus.openBundleProgressively(postEditedPath, bundlePath, startingDocumentNumber - 1)
+				: Corpus.openBundle(postEditedPath, bundlePath),
+			postEditedPath, logPath, startingDocumentNumber);
+	}
+	
+	@SuppressWarnings("serial")
+	private PostEditor(Corpus translatedDocuments, String postEditedPath, String logPath, int startingDocumentNumber) throws UnsupportedEncodingException, IOException {
 
 		this.listener = new EventLogger(logPath);
 		
-		this.translatedDocuments = TranslatedDocument.collateTranslatedDocuments(postEditedPath, sourcePath, targetPath, alignmentsPath /*, svgListPath*/);
+		this.translatedDocuments = translatedDocuments;
+		this.autosave = AutosaveScheduler.fromProperties(translatedDocuments);
+		this.prefetch = Math.max(0, Integer.getInteger(ParallelSentencesPanel.PREFETCH_PROPERTY, 1));
+		final int parallelism = Integer.getInteger(Corpus.PARALLELISM_PROPERTY, 0);
+		if (parallelism > 0 && Boolean.getBoolean(Corpus.PROGRESSIVE_PROPERTY)) {
+			Thread parser = new Thread("Corpus parser") {
+				public void run() {
+					PostEditor.this.translatedDocuments.parseAll(parallelism);
+				}
+			};
+			parser.setDaemon(true);
+			parser.start();
+		} else if (parallelism > 0) {
+			this.translatedDocuments.parseAll(parallelism);
+		}
 //		System.err.println(this.translatedDocuments.size() + " documents");
 		
 		this.postEditedPath = postEditedPath;
@@ -88,13 +122,17 @@ public class PostEditor {
 
 			@Override
 			public void windowClosing(WindowEvent arg0) {
-				saveDocument();
+				listener.publishPendingMotion();
+				translatedDocuments.save();
+				translatedDocuments.close();
 				System.exit(0);
 			}
 			
 			@Override
 			public void windowClosed(WindowEvent arg0) {
-				saveDocument();
+				listener.publishPendingMotion();
+				translatedDocuments.save();
+				translatedDocuments.close();
 				System.exit(0);
 			}
 			
@@ -148,17 +186,21 @@ public class PostEditor {
 //					}
 //				} else 
 				if (eventSource==nextDocument) {
-					if (documentNumber+1 < translatedDocuments.size()) {
-//						System.err.println("Next Document");
-						documentNumber += 1;
-						sentenceNumber = 0;
-						updateDocument(true);
-						updateSentence();
-					}
+					final int next = documentNumber+1;
+					whenIndexed(next, new Runnable() {
+						public void run() {
+//							System.err.println("Next Document");
+							documentNumber = next;
+							sentenceNumber = 0;
+							updateDocument(true);
+							updateSentence();
+						}
+					}, null);
 //					else {
 //						System.err.println("Won't do Next Document");
 //					}
 				} else if (eventSource==previousDocument) {
+					cancelPendingSwitch();
 					if (documentNumber >= 1) {
 //						System.err.println("Previous Document");
 						documentNumber -= 1;
@@ -170,22 +212,42 @@ public class PostEditor {
 ////						System.err.println("Won't do Previous Document");
 //					}
 				} else if (eventSource==saveDocument) {
-					boolean success = saveDocument();
-					if (success) {
-						JOptionPane.showMessageDialog(parallelSentenceFrame, "Save complete!");
-					} else {
-						JOptionPane.showMessageDialog(parallelSentenceFrame, "A problem occurred while saving", "Error saving", JOptionPane.ERROR_MESSAGE);
-					}
+					final Future<Boolean> save = saveDocument();
+					new SwingWorker<Boolean,Void>() {
+						@Override
+						protected Boolean doInBackground() throws Exception {
+							return save.get();
+						}
+						
+						@Override
+						protected void done() {
+							boolean success;
+							try {
+								success = get();
+							} catch (Exception e) {
+								success = false;
+							}
+							if (success) {
+								JOptionPane.showMessageDialog(parallelSentenceFrame, "Save complete!");
+							} else {
+								JOptionPane.showMessageDialog(parallelSentenceFrame, "A problem occurred while saving", "Error saving", JOptionPane.ERROR_MESSAGE);
+							}
+						}
+					}.execute();
 				} else if (eventSource==gotoDocument) {
-					String value = JOptionPane.showInputDialog("Enter document number:");
+					final String value = JOptionPane.showInputDialog("Enter document number:");
 					try {
-						int i = Integer.valueOf(value) - 1;
-						if (i >= 0 && i < translatedDocuments.size()) {
-							documentNumber = Integer.valueOf(value) - 1;
-							updateDocument(true);
-						} else {
-							JOptionPane.showMessageDialog(parallelSentenceFrame, "\"" + value + "\" is not a valid document number.\nValid numbers are [1-"+translatedDocuments.size()+"]", "Invalid number", JOptionPane.ERROR_MESSAGE);
-						}
+						final int i = Integer.valueOf(value) - 1;
+						whenIndexed(i, new Runnable() {
+							public void run() {
+								documentNumber = i;
+								updateDocument(true);
+							}
+						}, new Runnable() {
+							public void run() {
+								JOptionPane.showMessageDialog(parallelSentenceFrame, "\"" + value + "\" is not a valid document number.\nValid numbers are [1-"+translatedDocuments.size()+"]", "Invalid number", JOptionPane.ERROR_MESSAGE);
+							}
+						});
 					} catch (NumberFormatException e) {
 						JOptionPane.showMessageDialog(parallelSentenceFrame, "\"" + value + "\" is not a valid document number.\nValid numbers are [1-"+translatedDocuments.size()+"]", "Invalid number", JOptionPane.ERROR_MESSAGE);
 					}
@@ -265,7 +327,6 @@ public class PostEditor {
 		
 		this.parallelSentencesPanel = new ParallelSentencesPanel();
 //		this.parallelSentencesPanel = new JPanel();
-		this.parallelSentencesPanel.setLayout(new BoxLayout(this.parallelSentencesPanel, BoxLayout.PAGE_AXIS));
 		JScrollPane parallelSentencesScrollPane = new JScrollPane(parallelSentencesPanel, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED) {
 			public String toString() {
 				return "" + documentNumber + "\t" + "\t" + Provenance.Window.toString() + "\t" +  "\t";
@@ -305,6 +366,16 @@ public class PostEditor {
 		this.updateSentence();
 //		System.err.println(parallelSentencesScrollPane.getViewport().getBackground());
 		
+		this.translatedDocuments.whenLoaded(new Runnable() {
+			public void run() {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						updateTitle();
+					}
+				});
+			}
+		});
+		
 	} 
 
 	int getDocumentNumber() {
@@ -318,42 +389,73 @@ public class PostEditor {
 	void setSentenceNumber(int sentenceNumber) {
 		this.sentenceNumber = sentenceNumber;
 	}
+	
+	/** Called by a sentence panel each time its post-edit changes. */
+	void editActivity() {
+		if (autosave != null) {
+			autosave.editActivity();
+		}
+	}
 
-	private boolean saveDocument() {
-		boolean success = true;
-//		System.err.println("Writing out to " + postEditedPath);
-		BufferedWriter out = null;
-		try {
-			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(postEditedPath), "UTF-8"));
-			out.write("=================================");
-			out.newLine();
-			out.write("=================================");
-			out.newLine();
-			for (TranslatedDocument document : this.translatedDocuments) {
-				for (ParallelSentence parallelSentence : document) {
-					out.write(parallelSentence.getEditedTranslation());
-					out.newLine();
-				}
-				out.write("=================================");
-				out.newLine();
-				out.write("=================================");
-				out.newLine();
+	/**
+	 * Runs <code>indexed</code> once the corpus has indexed document <code>document</code>, or <code>missing</code>, if not null,
+	 * once it is clear that there is no such document. Both run on the Event Dispatch Thread, but while the corpus is still
+	 * being indexed the wait happens on a worker thread, so the window stays responsive.
+	 * A later switch of document cancels the wait.
+	 */
+	private void whenIndexed(final int document, final Runnable indexed, final Runnable missing) {
+		cancelPendingSwitch();
+		if (!translatedDocuments.isLoading() || document < translatedDocuments.size()) {
+			// Answered without waiting
+			if (translatedDocuments.awaitDocument(document)) {
+				indexed.run();
+			} else if (missing != null) {
+				missing.run();
 			}
-		} catch (IOException e) {
-			success = false;
-			e.printStackTrace();
-		} finally {
-			if (out!=null) {
+			return;
+		}
+		this.parallelSentenceFrame.setTitle("Waiting for document " + (document+1) + " to be indexed...");
+		this.pendingSwitch = new SwingWorker<Boolean,Void>() {
+			@Override
+			protected Boolean doInBackground() throws Exception {
+				return translatedDocuments.awaitDocument(document);
+			}
+			
+			@Override
+			protected void done() {
+				if (isCancelled()) {
+					return;
+				}
+				pendingSwitch = null;
+				updateTitle();
+				boolean found;
 				try {
-					out.close();
-				} catch (IOException e) {
-					success = false;
-					e.printStackTrace();
+					found = get();
+				} catch (Exception e) {
+					found = false;
+				}
+				if (found) {
+					indexed.run();
+				} else if (missing != null) {
+					missing.run();
 				}
 			}
+		};
+		this.pendingSwitch.execute();
+	}
+	
+	private void cancelPendingSwitch() {
+		if (pendingSwitch != null) {
+			pendingSwitch.cancel(true);
+			pendingSwitch = null;
+			updateTitle();
 		}
-		
-		return success;
+	}
+
+	/** Queues a save on the corpus writer thread, so that the Event Dispatch Thread never waits for the disk. */
+	private Future<Boolean> saveDocument() {
+//		System.err.println("Writing out to " + postEditedPath);
+		return this.translatedDocuments.saveInBackground();
 	}
 	
 	private void updateDocument(boolean writePostEdits) {
@@ -370,18 +472,13 @@ public class PostEditor {
 //		uneditableTargetTextAreaScollPane.setMaximumSize(uneditableTargetTextAreaScollPane.getPreferredSize());
 
 //		this.parallelSentencesPanel.requestFocus();
-		this.parallelSentenceFrame.setVisible(false);
-		this.parallelSentenceFrame.setTitle("Document " + (documentNumber+1) + " of " + translatedDocuments.size());
-		this.parallelSentencesPanel.removeAll();
+		this.updateTitle();
 //		System.err.println(documentNumber + " (size=="+ translatedDocuments.size()+"\"");
-		for (ParallelSentence parallelSentence : this.translatedDocuments.get(documentNumber)) {
-//			final ParallelSentencePanel panel = new ParallelSentencePanel(this.translatedDocuments.get(documentNumber).get(sentenceNumber));
-			final ParallelSentencePanel parallelSentencePanel = new ParallelSentencePanel(parallelSentence, this);
-			this.parallelSentencesPanel.add(parallelSentencePanel);			
-		}
+		// Swapped in place: the panel is laid out and painted once, after this event, so there is nothing to hide
+		this.parallelSentencesPanel.setDocument(this.translatedDocuments.get(documentNumber), this);
 //		this.parallelSentencesPanel.setMaximumSize(this.parallelSentenceFrame.getMaximumSize());
 //		this.parallelSentencesPanel.setSize(this.parallelSentenceFrame.getMaximumSize());
-		this.parallelSentenceFrame.setVisible(true);
+		this.prefetchNeighbours();
 
 		if (writePostEdits) {
 			saveDocument();
@@ -396,6 +493,26 @@ public class PostEditor {
 	}
 	
 
+	/** Has the sentences panel prepare the documents either side of the current one, the next before the previous. */
+	private void prefetchNeighbours() {
+		List<TranslatedDocument> neighbours = new ArrayList<TranslatedDocument>();
+		int size = translatedDocuments.size();
+		for (int distance=1; distance<=prefetch; distance+=1) {
+			if (documentNumber + distance < size) {
+				neighbours.add(translatedDocuments.get(documentNumber + distance));
+			}
+			if (documentNumber - distance >= 0) {
+				neighbours.add(translatedDocuments.get(documentNumber - distance));
+			}
+		}
+		this.parallelSentencesPanel.prefetch(neighbours);
+	}
+
+	/** While the corpus is still loading, the document count is shown as a lower bound. */
+	private void updateTitle() {
+		this.parallelSentenceFrame.setTitle("Document " + (documentNumber+1) + " of " + translatedDocuments.size() + (translatedDocuments.isLoading() ? "+" : ""));
+	}
+
 	private void updateSentence() {
 
 //		svgCanvas.setURI(this.getSVGPath());   	
@@ -429,6 +546,10 @@ public class PostEditor {
 			
 			new PostEditor(args[0], args[1], args[2], args[3], args[4], 1);
 			
+		} else if (args.length==3 && CorpusBundle.isBundle(args[1])) {
+			
+			new PostEditor(args[0], args[1], args[2], 1);
+			
 //		} else if (args.length==7) {
 //			
 //			new PostEditor(args[0], args[1], args[2], args[3], Integer.valueOf(args[5]));
@@ -436,6 +557,7 @@ public class PostEditor {
 		} else {
 
 			System.err.println("Usage: PostEditor postEdit.txt source.txt mtOutput.txt alignments.txt logFile.gz (startingDocumentNumber)");
+			System.err.println("   or: PostEditor postEdit.txt corpus.bundle logFile.gz");
 			
 //			final String postEditedPath = "/exp1/active/lane/2014-02-25_wmt14_postediting/newstest2014-ruen-src.ru.tokenized.translations.with_breaks.concatenated_transliterations.postedited";
 //			final String sourcePath = "/exp1/active/lane/2014-02-25_wmt14_postediting/newstest2014-ruen-src.ru.tokenized";
@@ -0,0 +1,31 @@
+import java.io.IOException;
+
+/**
+ * Command-line tool that folds the per-document segments written by a segmented save
+ * (see {@link Corpus#SEGMENTS_PROPERTY}) back into the flat post-edit file.
+ */
+public class SegmentMerger {
+
+	public static void main(String[] args) throws IOException {
+
+		Corpus corpus;
+		if (args.length==4) {
+			corpus = Corpus.open(args[0], args[1], args[2], args[3]);
+		} else if (args.length==2) {
+			corpus = Corpus.openBundle(args[0], args[1]);
+		} else {
+			System.err.println("Usage: SegmentMerger postEdit.txt source.txt mtOutput.txt alignments.txt");
+			System.err.println("       SegmentMerger postEdit.txt corpus.bundle");
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		if (corpus.mergeSegments()) {
+			System.err.println("Merged segments into " + args[0] + " in " + (System.currentTimeMillis() - start) + " ms");
+		} else {
+			System.err.println("Unable to merge segments into " + args[0]);
+			System.exit(1);
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import util.MappedLineReader;
+
+/**
+ * Post-edits of individual documents, stored one file per document in <code>postEdit.segments/</code>
+ * so that saving an edited document rewrites only that document.
+ * <p>
+ * A segment holds the post-edited lines of one document and takes precedence over
+ * that document's lines in the flat post-edit file. The directory's <code>manifest</code> lists
+ * the segments that are complete, one line per document with its number (counting from one),
+ * its sentence count and its file name; a segment file that is not in the manifest is ignored.
+ * <p>
+ * Saving in the flat format folds all segments back into the post-edit file and removes them
+ * (see {@link SegmentMerger}); a segment whose sentence count no longer matches its document
+ * is set aside instead.
+ */
+class SegmentStore {
+
+	private static final String HEADER = "# posteditor segments 1";
+	private static final String MANIFEST = "manifest";
+	private static final String MISMATCHED = ".mismatched";
+
+	private static final byte[] NEWLINE = System.getProperty("line.separator").getBytes();
+
+	private final File directory;
+
+	/** Sentence count of each document that has a segment. */
+	private final Map<Integer,Integer> sentenceCounts;
+
+	/** Reads the manifest of the segments of <code>postEditedPath</code>, if there is one. */
+	SegmentStore(String postEditedPath) throws IOException {
+		this.directory = new File(postEditedPath + ".segments");
+		this.sentenceCounts = new TreeMap<Integer,Integer>();
+
+		File manifest = new File(directory, MANIFEST);
+		if (manifest.isFile()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+			try {
+				String line = in.readLine();
+				if (!HEADER.equals(line)) {
+					throw new IOException(manifest + " is not a segment manifest");
+				}
+				while ((line = in.readLine()) != null) {
+					String[] fields = line.split("\t");
+					int document = Integer.parseInt(fields[0]) - 1;
+					if (!fields[2].equals(name(document))) {
+						throw new IOException(manifest + ": unexpected segment " + fields[2]);
+					}
+					sentenceCounts.put(document, Integer.valueOf(fields[1]));
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException(manifest + ": " + e.getMessage());
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new IOException(manifest + ": malformed line");
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	synchronized boolean isEmpty() {
+		return sentenceCounts.isEmpty();
+	}
+
+	synchronized boolean contains(int document) {
+		return sentenceCounts.containsKey(document);
+	}
+
+	/** Numbers of the documents that have segments, in increasing order. */
+	synchronized int[] documents() {
+		int[] documents = new int[sentenceCounts.size()];
+		int i = 0;
+		for (Integer document : sentenceCounts.keySet()) {
+			documents[i++] = document;
+		}
+		return documents;
+	}
+
+	/**
+	 * Returns the sentence count that the manifest records for <code>document</code>,
+	 * which must agree with the corpus for the segment to be used.
+	 */
+	synchronized int sentenceCount(int document) {
+		return sentenceCounts.get(document);
+	}
+
+	/** Opens the segment of <code>document</code>, positioned before its first line. */
+	MappedLineReader open(int document) throws IOException {
+		return new MappedLineReader(new File(directory, name(document)).getPath());
+	}
+
+	/** Reads the post-edited lines of <code>document</code>. */
+	String[] read(int document) throws IOException {
+		String[] lines = new String[sentenceCount(document)];
+		MappedLineReader reader = open(document);
+		try {
+			for (int s=0; s<lines.length; s+=1) {
+				lines[s] = reader.nextLine();
+			}
+		} finally {
+			reader.close();
+		}
+		return lines;
+	}
+
+	/**
+	 * Replaces the segment of <code>document</code>; the segment is not used until {@link #writeManifest()} lists it.
+	 * The file is forced to disk and renamed into place, so a crash leaves either the old or the new segment.
+	 */
+	void write(int document, String[] lines) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (String line : lines) {
+			bytes.write(line.getBytes("UTF-8"));
+			bytes.write(NEWLINE);
+		}
+		replace(new File(directory, name(document)), bytes.toByteArray());
+		synchronized (this) {
+			sentenceCounts.put(document, lines.length);
+		}
+	}
+
+	/** Writes the manifest listing every segment written so far. */
+	void writeManifest() throws IOException {
+		StringBuilder manifest = new StringBuilder(HEADER).append('\n');
+		synchronized (this) {
+			for (Map.Entry<Integer,Integer> segment : sentenceCounts.entrySet()) {
+				int document = segment.getKey();
+				manifest.append(document + 1).append('\t').append(segment.getValue()).append('\t').append(name(document)).append('\n');
+			}
+		}
+		replace(new File(directory, MANIFEST), manifest.toString().getBytes("UTF-8"));
+	}
+
+	/**
+	 * Deletes every segment and the manifest, after the segments have been folded into the flat post-edit file.
+	 * A segment whose sentence count no longer agrees with <code>index</code> was not folded in,
+	 * so it is renamed to <code>n.txt.mismatched</code> and reported rather than deleted.
+	 */
+	synchronized void clear(CorpusIndex index) {
+		new File(directory, MANIFEST).delete();
+		for (Map.Entry<Integer,Integer> segment : sentenceCounts.entrySet()) {
+			int document = segment.getKey();
+			int sentences = segment.getValue();
+			File file = new File(directory, name(document));
+			if (sentences == index.sentenceCount(document)) {
+				file.delete();
+				continue;
+			}
+			File renamed = new File(directory, name(document) + MISMATCHED);
+			File kept = file.renameTo(renamed) ? renamed : file;
+			System.err.println("Kept " + kept + ", which has " + sentences + " sentences where document " + (document + 1) + " has " + index.sentenceCount(document));
+		}
+		sentenceCounts.clear();
+		directory.delete();
+	}
+
+	private static String name(int document) {
+		return (document + 1) + ".txt";
+	}
+
+	private static void replace(File file, byte[] contents) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileChannel out = new FileOutputStream(temp).getChannel();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(contents);
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			out.force(true);
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+}
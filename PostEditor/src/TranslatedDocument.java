@@ -1,35 +1,81 @@
-import java.io.File;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Scanner;
 
 import javax.swing.JTextArea;
 
+import util.LineTokenizer;
+import util.MappedLineReader;
+import util.Vocabulary;
+
 
 public class TranslatedDocument implements Iterable<ParallelSentence> {
 
 	private final List<ParallelSentence> parallelSentences;
 	
+	private final Corpus corpus;
+	final int documentNumber;
+	private final int size;
+	private SoftReference<List<ParallelSentence>> loadedSentences;
+	
 	private TranslatedDocument(List<ParallelSentence> parallelSentences) {
 		this.parallelSentences = parallelSentences;
+		this.corpus = null;
+		this.documentNumber = -1;
+		this.size = parallelSentences.size();
+	}
+	
+	/** Creates a document whose sentences are parsed by <code>corpus</code> when first needed. */
+	TranslatedDocument(Corpus corpus, int documentNumber, int size) {
+		this.parallelSentences = null;
+		this.corpus = corpus;
+		this.documentNumber = documentNumber;
+		this.size = size;
+	}
+	
+	List<ParallelSentence> sentences() {
+		if (corpus == null) {
+			return parallelSentences;
+		} else {
+			return corpus.sentences(this);
+		}
+	}
+	
+	/** The sentences, read ahead of the document being shown without counting as a use of it (see {@link Corpus#prefetch}). */
+	List<ParallelSentence> prefetchSentences() {
+		if (corpus == null) {
+			return parallelSentences;
+		} else {
+			return corpus.prefetch(this);
+		}
+	}
+	
+	List<ParallelSentence> cachedSentences() {
+		return (loadedSentences == null) ? null : loadedSentences.get();
+	}
+	
+	void cache(List<ParallelSentence> sentences) {
+		this.loadedSentences = new SoftReference<List<ParallelSentence>>(sentences);
 	}
 	
 	public int size() {
-		return parallelSentences.size();
+		return size;
 	}
 	
 	public ParallelSentence get(int index) {
-		return parallelSentences.get(index);
+		return sentences().get(index);
 	}
 	
 	public void populateUneditableSourceTextArea(JTextArea textArea) {
 		textArea.setText(null);
 		
 		StringBuilder s = new StringBuilder();
-		for (ParallelSentence p : parallelSentences) {
-			for (String word : p.sourceWords) {
-				s.append(word);
+		for (ParallelSentence p : sentences()) {
+			for (int i=0, n=p.sourceLength(); i<n; i+=1) {
+				s.append(p.sourceWord(i));
 				s.append(" ");
 			}
 			s.append(System.getProperty("line.separator"));
@@ -45,9 +91,9 @@ public class TranslatedDocument implements Iterable<ParallelSentence> {
 		textArea.setText(null);
 		
 		StringBuilder s = new StringBuilder();
-		for (ParallelSentence p : parallelSentences) {
-			for (String word : p.targetWords) {
-				s.append(word);
+		for (ParallelSentence p : sentences()) {
+			for (int i=0, n=p.targetLength(); i<n; i+=1) {
+				s.append(p.targetWord(i));
 				s.append(" ");
 			}
 			s.append(System.getProperty("line.separator"));
@@ -64,45 +110,35 @@ public class TranslatedDocument implements Iterable<ParallelSentence> {
 		List<TranslatedDocument> list = new ArrayList<TranslatedDocument>();
 		
 		List<ParallelSentence> parallelSentences = new ArrayList<ParallelSentence>();
+		Vocabulary sourceVocabulary = new Vocabulary();
+		Vocabulary targetVocabulary = new Vocabulary();
+		LineTokenizer tokenizer = new LineTokenizer();
 //		boolean flag = true;
 
-		Scanner postEditScanner = null;
-		Scanner sourceScanner = null;
-		Scanner targetScanner = null;
-		Scanner alignmentsScanner = null;
+		MappedLineReader postEditReader = null;
+		MappedLineReader sourceReader = null;
+		MappedLineReader targetReader = null;
+		MappedLineReader alignmentsReader = null;
 
 		try {
-			postEditScanner = new Scanner (new File(postEditedPath), "UTF-8");
-			sourceScanner = new Scanner (new File(sourcePath), "UTF-8");
-			targetScanner = new Scanner (new File(targetPath), "UTF-8");
-			alignmentsScanner = new Scanner (new File(alignmentsPath), "UTF-8");
+			postEditReader = new MappedLineReader(postEditedPath);
+			sourceReader = new MappedLineReader(sourcePath);
+			targetReader = new MappedLineReader(targetPath);
+			alignmentsReader = new MappedLineReader(alignmentsPath);
 			
 //			Scanner svgListScanner = new Scanner(new File(svgListPath), "UTF-8");
 			
-			while (postEditScanner.hasNextLine() && sourceScanner.hasNextLine() && targetScanner.hasNextLine() && alignmentsScanner.hasNextLine() ) {
+			while (postEditReader.hasNextLine() && sourceReader.hasNextLine() && targetReader.hasNextLine() && alignmentsReader.hasNextLine() ) {
 				
-				String postEdit = postEditScanner.nextLine(); //System.err.println(postEdit);
-				String sourceLine = sourceScanner.nextLine();
-				String targetLine = targetScanner.nextLine();
-				String alignments = alignmentsScanner.nextLine();
+				postEditReader.advance();
+				sourceReader.advance();
+				targetReader.advance();
+				alignmentsReader.advance();
 //				String svgPath = svgListScanner.nextLine();
 				
-				String[] sourceParts = sourceLine.split("\\s+");
-				String[] targetParts = targetLine.split("\\s+");
-				String[] alignmentParts = alignments.split("\\s+");
+				ParallelSentence parallelSentence = parseSentence(postEditReader, sourceReader, targetReader, alignmentsReader, tokenizer, parallelSentences.size(), sourceVocabulary, targetVocabulary);
 				
-//				System.err.println(valid(sourceParts) + " " + valid(targetParts) + " " + valid(alignmentParts));
-				
-				if (valid(sourceParts) && valid(targetParts) /*&& valid(alignmentParts)*/) {
-					if (!valid(alignmentParts)) { alignmentParts=new String[0]; }
-					ParallelSentence parallelSentence = new ParallelSentence(postEdit, sourceParts, targetParts, alignmentParts, parallelSentences.size());
-//					parallelSentence.setEditedTranslation(postEdit);
-//					if (flag) {
-//						System.err.println(parallelSentence);
-//						System.err.println();
-//						flag = false;
-//					}
-//					System.exit(-1);
+				if (parallelSentence != null) {
 					parallelSentences.add(parallelSentence);
 				} else {
 					if (! parallelSentences.isEmpty()) {
@@ -113,43 +149,58 @@ public class TranslatedDocument implements Iterable<ParallelSentence> {
 				
 			}
 			
-//			System.err.println(postEditScanner.hasNextLine() + " " + sourceScanner.hasNextLine() + " " + targetScanner.hasNextLine() + " " + alignmentsScanner.hasNextLine() + " " + svgListScanner.hasNextLine());
+//			System.err.println(postEditReader.hasNextLine() + " " + sourceReader.hasNextLine() + " " + targetReader.hasNextLine() + " " + alignmentsReader.hasNextLine());
 		
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
-			if (postEditScanner != null) {
-				postEditScanner.close();
-			}
-			if (sourceScanner != null) {
-				sourceScanner.close();
-			}
-			if (targetScanner != null) {
-				targetScanner.close();
-			}
-			if (alignmentsScanner != null) {
-				alignmentsScanner.close();
-			}
+			close(postEditReader);
+			close(sourceReader);
+			close(targetReader);
+			close(alignmentsReader);
 		}
 			
 		return list;
 	}
 	
-    private static boolean valid(String[] line) {
-    	if (line==null) {
-    		return false;
-    	} else if (line.length==0) {
-    		return false;
-    	} else if ( line.length==1 && (line[0].equals("=================================") || line[0].equals("")) ) {
-    		return false;
-    	} else {
-    		return true;
-    	}
-    }
-
+	/**
+	 * Parses the current line of each of the four input files.
+	 * 
+	 * @return the parallel sentence, or <code>null</code> if the line is a document separator
+	 */
+	static ParallelSentence parseSentence(MappedLineReader postEditReader, MappedLineReader sourceReader, MappedLineReader targetReader, MappedLineReader alignmentsReader, 
+			LineTokenizer tokenizer, int sentenceNumber, Vocabulary sourceVocabulary, Vocabulary targetVocabulary) {
+		
+		int sourceLength = tokenizer.tokenize(sourceReader, sourceVocabulary);
+		if (sourceLength < 0) {
+			return null;
+		}
+		int[] sourceTokens = tokenizer.tokens(sourceLength);
+		
+		int targetLength = tokenizer.tokenize(targetReader, targetVocabulary);
+		if (targetLength < 0) {
+			return null;
+		}
+		int[] targetTokens = tokenizer.tokens(targetLength);
+		
+		int[] alignmentPoints = tokenizer.alignments(tokenizer.parseAlignments(alignmentsReader));
+		
+		return new ParallelSentence(postEditReader.currentLine(), sourceVocabulary, sourceTokens, targetVocabulary, targetTokens, alignmentPoints, sentenceNumber);
+	}
+	
+	private static void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
 	@Override
 	public Iterator<ParallelSentence> iterator() {
-		return parallelSentences.iterator();
+		return sentences().iterator();
 	}
 	
 	
@@ -0,0 +1,514 @@
+package util;
+
+import java.awt.event.FocusEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compact binary form of the {@link EventLogger} log, written for log files named <code>*.elog</code> or <code>*.elog.gz</code>.
+ * <p>
+ * The file starts with a magic number, a version byte and, from version 3, the varint wall-clock time
+ * in milliseconds since 1970 at which the logger started. Each event is then
+ * <pre>
+ * time        zigzag varint, time since the previous event: nanoseconds from version 3, milliseconds before
+ * event       byte, index into the event names
+ * key         KEY_PRESSED and KEY_RELEASED: interned key text; KEY_TYPED: varint character
+ * run         MOUSE_MOVED and MOUSE_DRAGGED, from version 2: varint number of further events coalesced into this one,
+ *             and if there are any, zigzag varints of the last one's time since this one, x and y
+ * parameters  diff against the previous event's parameters
+ * source      byte 0, then interned document/sentence/provenance context, interned word number,
+ *             and a diff against the previous text of the same context;
+ *             or byte 1 and a diff against the previous source that was not in that form
+ * </pre>
+ * From version 4, an event code of 255 is not an event but a reset point: it is followed by the varint time
+ * since the logger started, and every interned string and previous value is forgotten, so decoding can start there.
+ * <p>
+ * An interned string is a varint id; an id one past the last one assigned is followed by the new string.
+ * A diff is the varint lengths of the prefix and suffix kept from the previous string, followed by the string in between.
+ * Strings are a varint byte count and UTF-8 bytes.
+ * <p>
+ * Keystrokes into an edit field therefore cost a few bytes each, rather than a copy of the whole sentence.
+ * Running this class decodes a binary log back into exactly the tab-separated text that EventLogger writes otherwise.
+ */
+public class BinaryEventLog {
+
+	private static final int MAGIC = 0x50454C47;
+	private static final int VERSION = 4;
+
+	private static final int RESET = 0xFF;
+
+	private static final int[] IDS = {
+		MouseEvent.MOUSE_PRESSED, MouseEvent.MOUSE_RELEASED, MouseEvent.MOUSE_CLICKED, MouseEvent.MOUSE_ENTERED,
+		MouseEvent.MOUSE_EXITED, MouseEvent.MOUSE_MOVED, MouseEvent.MOUSE_DRAGGED, MouseEvent.MOUSE_WHEEL,
+		KeyEvent.KEY_PRESSED, KeyEvent.KEY_RELEASED, KeyEvent.KEY_TYPED, FocusEvent.FOCUS_GAINED, FocusEvent.FOCUS_LOST
+	};
+
+	private static final String[] NAMES = {
+		"MOUSE_PRESSED", "MOUSE_RELEASED", "MOUSE_CLICKED", "MOUSE_ENTERED",
+		"MOUSE_EXITED", "MOUSE_MOVED", "MOUSE_DRAGGED", "MOUSE_WHEEL",
+		"KEY_PRESSED", "KEY_RELEASED", "KEY_TYPED", "FOCUS_GAINED", "FOCUS_LOST",
+		"UNKNOWN"
+	};
+
+	private static final byte[][] NAME_BYTES = new byte[NAMES.length][];
+	static {
+		for (int code=0; code<NAMES.length; code+=1) {
+			NAME_BYTES[code] = NAMES[code].getBytes(Charset.forName("UTF-8"));
+		}
+	}
+
+	private static final int MOUSE_MOVED = 5;
+	private static final int MOUSE_DRAGGED = 6;
+	private static final int KEY_PRESSED = 8;
+	private static final int KEY_RELEASED = 9;
+	private static final int KEY_TYPED = 10;
+	static final int UNKNOWN = 13;
+
+	private static final int FORMATTED_SOURCE = 0;
+	private static final int OTHER_SOURCE = 1;
+
+	/** UTF-8 name of an event code as written in the text log. */
+	static byte[] name(int code) {
+		return NAME_BYTES[code];
+	}
+
+	/** Name of an event code, with which the event's parameter string also starts. */
+	static String nameString(int code) {
+		return NAMES[code];
+	}
+
+	static int code(int id) {
+		for (int code=0; code<IDS.length; code+=1) {
+			if (IDS[code] == id) {
+				return code;
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/** Writes events in the binary form; used only by the logger's consumer thread. */
+	static class Encoder implements Closeable {
+
+		private final OutputStream out;
+		private long time;
+		private final StringBuilder parameters = new StringBuilder();
+		private String source = "";
+		/** The UTF-8 bytes of each string as it is written. */
+		private final LogBuffer bytes = new LogBuffer();
+		private final Map<String,Integer> keys = new HashMap<String,Integer>();
+		private final Map<String,Integer> contexts = new HashMap<String,Integer>();
+		private final Map<String,Integer> words = new HashMap<String,Integer>();
+		private final List<String> texts = new ArrayList<String>();
+
+		/** @param out should be buffered; the encoder writes a byte at a time */
+		Encoder(OutputStream out, long epochMillis) throws IOException {
+			this.out = out;
+			writeInt(MAGIC);
+			this.out.write(VERSION);
+			writeVarlong(epochMillis);
+		}
+
+		/** Writes a reset point, from which the events that follow can be decoded without those before. */
+		void reset(long time) throws IOException {
+			writeVarlong(0);
+			out.write(RESET);
+			writeVarlong(time);
+			this.time = time;
+			parameters.setLength(0);
+			source = "";
+			keys.clear();
+			contexts.clear();
+			words.clear();
+			texts.clear();
+		}
+
+		/**
+		 * @param parameters the event's parameter string, up to its first tab; it is copied, so the caller may reuse it
+		 * @param source     the description of the event's source
+		 */
+		void write(long time, int id, int keyCode, char keyChar, int count, long endTime, int endX, int endY, CharSequence parameters, String source) throws IOException {
+			writeVarlong(zigzag(time - this.time));
+			this.time = time;
+
+			int code = code(id);
+			out.write(code);
+			if (code == KEY_PRESSED || code == KEY_RELEASED) {
+				writeInterned(keys, KeyEvent.getKeyText(keyCode));
+			} else if (code == KEY_TYPED) {
+				writeVarint(keyChar);
+			} else if (code == MOUSE_MOVED || code == MOUSE_DRAGGED) {
+				writeVarint(count - 1);
+				if (count > 1) {
+					writeVarlong(zigzag(endTime - time));
+					writeVarlong(zigzag(endX));
+					writeVarlong(zigzag(endY));
+				}
+			}
+
+			writeDiff(this.parameters, parameters);
+			this.parameters.setLength(0);
+			this.parameters.append(parameters);
+
+			// ParallelSentencePanel sources read "document \t sentence \t provenance \t word \t text"
+			int context = nthTab(source, 3);
+			int word = (context < 0) ? -1 : source.indexOf('\t', context + 1);
+			if (word >= 0) {
+				out.write(FORMATTED_SOURCE);
+				int c = writeInterned(contexts, source.substring(0, context));
+				writeInterned(words, source.substring(context + 1, word));
+				String text = source.substring(word + 1);
+				if (c == texts.size()) {
+					texts.add("");
+				}
+				writeDiff(texts.get(c), text);
+				texts.set(c, text);
+			} else {
+				out.write(OTHER_SOURCE);
+				writeDiff(this.source, source);
+				this.source = source;
+			}
+		}
+
+		private int writeInterned(Map<String,Integer> table, String s) throws IOException {
+			Integer id = table.get(s);
+			if (id != null) {
+				writeVarint(id);
+				return id;
+			}
+			int next = table.size();
+			table.put(s, next);
+			writeVarint(next);
+			writeString(s);
+			return next;
+		}
+
+		private void writeDiff(CharSequence previous, CharSequence s) throws IOException {
+			int max = Math.min(previous.length(), s.length());
+			int prefix = 0;
+			while (prefix < max && previous.charAt(prefix) == s.charAt(prefix)) {
+				prefix += 1;
+			}
+			if (prefix > 0 && prefix < s.length() && Character.isHighSurrogate(s.charAt(prefix - 1))) {
+				prefix -= 1;
+			}
+			int suffix = 0;
+			while (suffix < max - prefix && previous.charAt(previous.length() - 1 - suffix) == s.charAt(s.length() - 1 - suffix)) {
+				suffix += 1;
+			}
+			if (suffix > 0 && suffix < s.length() - prefix && Character.isLowSurrogate(s.charAt(s.length() - suffix))) {
+				suffix -= 1;
+			}
+			writeVarint(prefix);
+			writeVarint(suffix);
+			writeString(s, prefix, s.length() - suffix);
+		}
+
+		private void writeString(CharSequence s) throws IOException {
+			writeString(s, 0, s.length());
+		}
+
+		private void writeString(CharSequence s, int start, int end) throws IOException {
+			bytes.clear();
+			bytes.append(s, start, end);
+			writeVarint(bytes.length());
+			bytes.writeTo(out);
+		}
+
+		private void writeVarint(int value) throws IOException {
+			writeVarlong(value & 0xFFFFFFFFL);
+		}
+
+		private void writeVarlong(long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				out.write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			out.write((int) value);
+		}
+
+		private void writeInt(int value) throws IOException {
+			out.write(value >>> 24);
+			out.write(value >>> 16);
+			out.write(value >>> 8);
+			out.write(value);
+		}
+
+		void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+
+		private static long zigzag(long value) {
+			return (value << 1) ^ (value >> 63);
+		}
+
+		private static int nthTab(String s, int n) {
+			int index = -1;
+			for (int i=0; i<n; i+=1) {
+				index = s.indexOf('\t', index + 1);
+				if (index < 0) {
+					return -1;
+				}
+			}
+			return index;
+		}
+
+	}
+
+	/** Reads a binary log one event at a time. */
+	public static class Decoder implements Closeable {
+
+		private final InputStream in;
+		private final int version;
+		private final long epochMillis;
+		private long time;
+		private String parameters = "";
+		private String source = "";
+		private final List<String> keys = new ArrayList<String>();
+		private final List<String> contexts = new ArrayList<String>();
+		private final List<String> words = new ArrayList<String>();
+		private final List<String> texts = new ArrayList<String>();
+
+		public Decoder(InputStream in) throws IOException {
+			this.in = new BufferedInputStream(in);
+			if (readInt() != MAGIC) {
+				throw new IOException("Not a binary event log");
+			}
+			version = read();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported binary event log version " + version);
+			}
+			epochMillis = (version >= 3) ? readVarlong(read()) : -1;
+		}
+
+		/** Decodes from a reset point of a log whose header has been read by <code>header</code>. */
+		Decoder(InputStream in, Decoder header) {
+			this.in = new BufferedInputStream(in);
+			this.version = header.version;
+			this.epochMillis = header.epochMillis;
+		}
+
+		/**
+		 * Appends the next event to <code>line</code>, exactly as the text log would have it, terminating newline included.
+		 *
+		 * @return false at the end of the log
+		 */
+		public boolean next(StringBuilder line) throws IOException {
+			int first = in.read();
+			if (first < 0) {
+				return false;
+			}
+			time += unzigzag(readVarlong(first));
+			int code = read();
+			if (code == RESET && version >= 4) {
+				time = readVarlong(read());
+				parameters = "";
+				source = "";
+				keys.clear();
+				contexts.clear();
+				words.clear();
+				texts.clear();
+				return next(line);
+			}
+			appendTime(time, line);
+			line.append('\t');
+
+			if (code >= NAMES.length) {
+				throw new IOException("Unknown event code " + code);
+			}
+			line.append(NAMES[code]);
+			if (code != UNKNOWN) {
+				line.append('\t');
+			}
+			if (code == KEY_PRESSED || code == KEY_RELEASED) {
+				line.append(readInterned(keys));
+			} else if (code == KEY_TYPED) {
+				char c = (char) readVarint();
+				if (c=='\t') {
+					line.append("TAB");
+				} else {
+					line.append(c);
+				}
+			} else if ((code == MOUSE_MOVED || code == MOUSE_DRAGGED) && version >= 2) {
+				int count = readVarint() + 1;
+				if (count > 1) {
+					long endTime = time + unzigzag(readVarlong(read()));
+					int endX = (int) unzigzag(readVarlong(read()));
+					int endY = (int) unzigzag(readVarlong(read()));
+					line.append("until=");
+					appendTime(endTime, line);
+					line.append(",(").append(endX).append(',').append(endY).append("),count=").append(count);
+				}
+			}
+
+			parameters = readDiff(parameters);
+			line.append('\t');
+			line.append(parameters);
+
+			line.append('\t');
+			int kind = read();
+			if (kind == FORMATTED_SOURCE) {
+				int c = readVarint();
+				String context = (c == contexts.size()) ? add(contexts, readString()) : contexts.get(c);
+				String word = readInterned(words);
+				if (c == texts.size()) {
+					texts.add("");
+				}
+				String text = readDiff(texts.get(c));
+				texts.set(c, text);
+				line.append(context).append('\t').append(word).append('\t').append(text);
+			} else if (kind == OTHER_SOURCE) {
+				source = readDiff(source);
+				line.append(source);
+			} else {
+				throw new IOException("Unknown source kind " + kind);
+			}
+
+			line.append('\n');
+			return true;
+		}
+
+		/**
+		 * The header line that a text log written at the same time would start with,
+		 * or null for a log from before version 3, when text logs had no header.
+		 */
+		public String header() {
+			return (epochMillis >= 0) ? EventLogger.header(epochMillis) : null;
+		}
+
+		private void appendTime(long time, StringBuilder line) {
+			if (version >= 3) {
+				EventLogger.appendTime(time, line);
+			} else {
+				line.append(time);
+			}
+		}
+
+		private String readInterned(List<String> table) throws IOException {
+			int id = readVarint();
+			return (id == table.size()) ? add(table, readString()) : table.get(id);
+		}
+
+		private static String add(List<String> table, String s) {
+			table.add(s);
+			return s;
+		}
+
+		private String readDiff(String previous) throws IOException {
+			int prefix = readVarint();
+			int suffix = readVarint();
+			String middle = readString();
+			return previous.substring(0, prefix) + middle + previous.substring(previous.length() - suffix);
+		}
+
+		private String readString() throws IOException {
+			byte[] bytes = new byte[readVarint()];
+			int n = 0;
+			while (n < bytes.length) {
+				int read = in.read(bytes, n, bytes.length - n);
+				if (read < 0) {
+					throw new EOFException();
+				}
+				n += read;
+			}
+			return new String(bytes, "UTF-8");
+		}
+
+		private int read() throws IOException {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			return b;
+		}
+
+		private int readVarint() throws IOException {
+			return (int) readVarlong(read());
+		}
+
+		private long readVarlong(int b) throws IOException {
+			long value = 0;
+			for (int shift=0; shift<64; shift+=7) {
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+				b = read();
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		private int readInt() throws IOException {
+			return (read() << 24) | (read() << 16) | (read() << 8) | read();
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private static long unzigzag(long value) {
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+	}
+
+	/** Opens <code>fileName</code>, decompressing it if its name ends in <code>.gz</code>. */
+	public static Decoder open(String fileName) throws IOException {
+		InputStream in = new FileInputStream(fileName);
+		if (fileName.endsWith(".gz")) {
+			in = new GZIPInputStream(in);
+		}
+		return new Decoder(in);
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length==1 || args.length==2) {
+
+			Decoder decoder = open(args[0]);
+			Writer out = new OutputStreamWriter((args.length==2) ? new FileOutputStream(args[1]) : System.out, "UTF-8");
+			StringBuilder line = new StringBuilder();
+			try {
+				if (decoder.header() != null) {
+					out.append(decoder.header());
+				}
+				while (decoder.next(line)) {
+					out.append(line);
+					line.setLength(0);
+				}
+			} catch (EOFException e) {
+				System.err.println("Log ends with a truncated event");
+			} finally {
+				decoder.close();
+				out.close();
+			}
+
+		} else {
+
+			System.err.println("Usage: BinaryEventLog log.elog[.gz] [log.txt]");
+
+		}
+	}
+
+}
@@ -0,0 +1,203 @@
+package util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes gzip in independently compressed blocks, in the BGZF layout used by bgzip and htslib.
+ * <p>
+ * Each block of up to {@link #BLOCK_SIZE} bytes of input is a complete gzip member whose extra field
+ * records the compressed size of the block, so a reader can skip from block to block without inflating,
+ * and start inflating at any block. The file ends with an empty block as an end-of-file marker.
+ * Any gzip reader sees the concatenated members as one stream.
+ * <p>
+ * Full blocks are compressed on the given pool, several at once, and written in order as they complete.
+ * A crash loses only the blocks not yet written.
+ */
+public class BlockCompressedOutputStream extends OutputStream {
+
+	/** Input bytes per block; small enough that even incompressible input fits the 64 KiB block limit. */
+	public static final int BLOCK_SIZE = 0xFF00;
+
+	private static final int HEADER_SIZE = 18;
+	private static final int FOOTER_SIZE = 8;
+
+	private final OutputStream out;
+	private final ExecutorService pool;
+	private final int maxPending;
+	private final Queue<Future<byte[]>> pending;
+	/** The input blocks of the pending compressions, in the same order; once compressed, they are reused. */
+	private final Queue<byte[]> inputs;
+	private final Queue<byte[]> free;
+
+	private byte[] block;
+	private int length;
+	/** Compressed bytes written to the underlying stream. */
+	private long written;
+	/** Blocks handed to the pool so far, which is the number of the current block. */
+	private long blocks;
+	private boolean closed;
+
+	/**
+	 * @param pool compresses the blocks; at most twice its intended parallelism of blocks are kept in flight
+	 */
+	public BlockCompressedOutputStream(OutputStream out, ExecutorService pool, int parallelism) {
+		this.out = out;
+		this.pool = pool;
+		this.maxPending = Math.max(1, 2 * parallelism);
+		this.pending = new ArrayDeque<Future<byte[]>>();
+		this.inputs = new ArrayDeque<byte[]>();
+		this.free = new ArrayDeque<byte[]>();
+		this.block = new byte[BLOCK_SIZE];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (length == BLOCK_SIZE) {
+			submit();
+		}
+		block[length++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int n) throws IOException {
+		while (n > 0) {
+			if (length == BLOCK_SIZE) {
+				submit();
+			}
+			int copied = Math.min(n, BLOCK_SIZE - length);
+			System.arraycopy(b, offset, block, length, copied);
+			length += copied;
+			offset += copied;
+			n -= copied;
+		}
+	}
+
+	/** Ends the current block, even if it is not full, and writes every block that has been compressed. */
+	@Override
+	public void flush() throws IOException {
+		if (length > 0) {
+			submit();
+		}
+		drain(0);
+		out.flush();
+	}
+
+	/**
+	 * The position of the next byte written: the number of its block, counting from zero, shifted left 16 bits,
+	 * plus its offset within the block's uncompressed data.
+	 * Unlike a BGZF virtual offset, which holds the block's file offset, this is known before
+	 * the preceding blocks have been compressed; a reader finds the block by counting block headers.
+	 */
+	public long getVirtualOffset() {
+		return (blocks << 16) | length;
+	}
+
+	/** Compressed bytes written so far. */
+	public long getCompressedSize() {
+		return written;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			flush();
+			byte[] eof = compress(new byte[0], 0);
+			out.write(eof);
+			written += eof.length;
+		} finally {
+			out.close();
+		}
+	}
+
+	private void submit() throws IOException {
+		final byte[] input = block;
+		final int n = length;
+		pending.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return compress(input, n);
+			}
+		}));
+		inputs.add(input);
+		block = free.isEmpty() ? new byte[BLOCK_SIZE] : free.poll();
+		length = 0;
+		blocks += 1;
+		drain(maxPending);
+	}
+
+	/** Writes completed blocks in order, waiting while more than <code>limit</code> are in flight. */
+	private void drain(int limit) throws IOException {
+		while (!pending.isEmpty() && (pending.size() > limit || pending.peek().isDone())) {
+			byte[] compressed;
+			try {
+				compressed = pending.poll().get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+			free.add(inputs.poll());
+			out.write(compressed);
+			written += compressed.length;
+		}
+	}
+
+	/** Compresses <code>n</code> bytes of <code>input</code> into one gzip member with a BGZF extra field. */
+	static byte[] compress(byte[] input, int n) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		byte[] output = new byte[HEADER_SIZE + n + n / 1000 + 64 + FOOTER_SIZE];
+		int size;
+		try {
+			deflater.setInput(input, 0, n);
+			deflater.finish();
+			size = HEADER_SIZE;
+			while (!deflater.finished()) {
+				if (size == output.length - FOOTER_SIZE) {
+					output = Arrays.copyOf(output, output.length * 2);
+				}
+				size += deflater.deflate(output, size, output.length - FOOTER_SIZE - size);
+			}
+		} finally {
+			deflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(input, 0, n);
+
+		int total = size + FOOTER_SIZE;
+		byte[] header = {
+			0x1f, (byte) 0x8b, 8, 4,  // gzip, deflate, FEXTRA
+			0, 0, 0, 0,               // no modification time
+			0, (byte) 0xff,           // no extra flags, unknown OS
+			6, 0,                     // extra field length
+			'B', 'C', 2, 0,           // BGZF subfield: block size less one
+			(byte) (total - 1), (byte) ((total - 1) >>> 8)
+		};
+		System.arraycopy(header, 0, output, 0, HEADER_SIZE);
+		writeIntLE(output, size, (int) crc.getValue());
+		writeIntLE(output, size + 4, n);
+		return Arrays.copyOf(output, total);
+	}
+
+	private static void writeIntLE(byte[] b, int offset, int value) {
+		b[offset] = (byte) value;
+		b[offset + 1] = (byte) (value >>> 8);
+		b[offset + 2] = (byte) (value >>> 16);
+		b[offset + 3] = (byte) (value >>> 24);
+	}
+
+}
@@ -0,0 +1,196 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The companion index <code>log.idx</code> that {@link EventLogger} writes beside each log file,
+ * listing where the events for each sentence are.
+ * <p>
+ * The log is cut into ranges of consecutive events from the same document and sentence, as given by
+ * the first two fields of a {@link LoggedComponent}'s context; events from other sources fall in ranges of document and sentence -1.
+ * After a magic number and a version, the index holds one big-endian entry per range, in log order:
+ * <pre>
+ * document     int
+ * sentence     int
+ * offset       long, where reading the range starts
+ * first event  long, number of events before the range in this file
+ * events       int
+ * skip         int, from version 2: number of events from the offset to the start of the range
+ * </pre>
+ * The offset is a byte offset for an uncompressed log, and a block number and offset, as given by
+ * {@link BlockCompressedOutputStream#getVirtualOffset()}, for a <code>.gz</code> log.
+ * For a text log it is where the range starts, and skip is 0.
+ * A binary log can only be decoded from a reset point, which it has at its start and then only every
+ * {@link BlockCompressedOutputStream#BLOCK_SIZE} bytes or so, to keep most of its compression;
+ * the offset is that of the last reset point before the range, and the events up to the range are skipped.
+ * Ranges still open when the editor stops are lost if it crashes; the log itself is unaffected.
+ */
+public class EventLogIndex {
+
+	private static final int MAGIC = 0x50454958;
+	private static final int VERSION = 2;
+
+	static final String SUFFIX = ".idx";
+
+	/** A run of consecutive events for one sentence. */
+	public static class Range {
+
+		public final int document;
+		public final int sentence;
+		public final long offset;
+		public final long firstEvent;
+		public final int events;
+		public final int skip;
+
+		Range(int document, int sentence, long offset, long firstEvent, int events, int skip) {
+			this.document = document;
+			this.sentence = sentence;
+			this.offset = offset;
+			this.firstEvent = firstEvent;
+			this.events = events;
+			this.skip = skip;
+		}
+
+	}
+
+	private final List<Range> ranges;
+
+	private EventLogIndex(List<Range> ranges) {
+		this.ranges = ranges;
+	}
+
+	/** Reads the index of the log file <code>logName</code>. */
+	public static EventLogIndex read(String logName) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logName + SUFFIX)));
+		try {
+			int version = (in.readInt() == MAGIC) ? in.readInt() : -1;
+			if (version < 1 || version > VERSION) {
+				throw new IOException(logName + SUFFIX + " is not an event log index");
+			}
+			List<Range> ranges = new ArrayList<Range>();
+			try {
+				while (true) {
+					// Before version 2 a binary log had a reset point at the start of every range
+					ranges.add(new Range(in.readInt(), in.readInt(), in.readLong(), in.readLong(), in.readInt(), (version >= 2) ? in.readInt() : 0));
+				}
+			} catch (EOFException e) {
+				// the end of the index, or an entry torn by a crash
+			}
+			return new EventLogIndex(ranges);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Every range, in log order. */
+	public List<Range> ranges() {
+		return Collections.unmodifiableList(ranges);
+	}
+
+	/** The ranges of one sentence, in log order. */
+	public List<Range> ranges(int document, int sentence) {
+		List<Range> found = new ArrayList<Range>();
+		for (Range range : ranges) {
+			if (range.document == document && range.sentence == sentence) {
+				found.add(range);
+			}
+		}
+		return found;
+	}
+
+	/** The ranges of every sentence of one document, in log order. */
+	public List<Range> ranges(int document) {
+		List<Range> found = new ArrayList<Range>();
+		for (Range range : ranges) {
+			if (range.document == document) {
+				found.add(range);
+			}
+		}
+		return found;
+	}
+
+	/** Writes the index of one log file; used only by the logger's consumer thread. */
+	static class Writer implements Closeable {
+
+		private final DataOutputStream out;
+		private long events;
+		private int document;
+		private int sentence;
+		private long offset;
+		private long first;
+		private int skip;
+
+		Writer(String logName) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logName + SUFFIX)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+
+		/** Whether an event for this sentence would start a new range. */
+		boolean isNewRange(int document, int sentence) {
+			return events == 0 || document != this.document || sentence != this.sentence;
+		}
+
+		/**
+		 * Ends the current range, and starts one with the next event, which is read by skipping
+		 * <code>skip</code> events from <code>offset</code>.
+		 */
+		void startRange(int document, int sentence, long offset, int skip) throws IOException {
+			endRange();
+			this.document = document;
+			this.sentence = sentence;
+			this.offset = offset;
+			this.first = events;
+			this.skip = skip;
+		}
+
+		/** Number of events counted so far. */
+		long events() {
+			return events;
+		}
+
+		/** Counts an event written to the current range. */
+		void event() {
+			events += 1;
+		}
+
+		private void endRange() throws IOException {
+			if (events > first) {
+				out.writeInt(document);
+				out.writeInt(sentence);
+				out.writeLong(offset);
+				out.writeLong(first);
+				out.writeInt((int) (events - first));
+				out.writeInt(skip);
+				first = events;
+			}
+		}
+
+		/** Writes out the ranges that have ended. */
+		void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				endRange();
+			} finally {
+				out.close();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,165 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the events of one sentence or document from an {@link EventLogger} log file,
+ * seeking to the ranges listed in its {@link EventLogIndex} instead of reading the whole log.
+ * <p>
+ * Events are returned as lines of the text log, whether the log is text or binary.
+ */
+public class EventLogReader implements Closeable {
+
+	private final String logName;
+	private final EventLogIndex index;
+	private final boolean compressed;
+	private final boolean binary;
+	/** File offset of each compressed block, found by reading the block headers. */
+	private final long[] blockOffsets;
+	/** The header of a binary log, from which its reset points are decoded. */
+	private final BinaryEventLog.Decoder header;
+
+	public EventLogReader(String logName) throws IOException {
+		this.logName = logName;
+		this.index = EventLogIndex.read(logName);
+		this.compressed = logName.endsWith(".gz");
+		this.binary = logName.endsWith(".elog") || logName.endsWith(".elog.gz");
+		this.blockOffsets = compressed ? blockOffsets(logName) : null;
+		this.header = binary ? BinaryEventLog.open(logName) : null;
+	}
+
+	public EventLogIndex getIndex() {
+		return index;
+	}
+
+	/** The events for one sentence, in the order they were logged. */
+	public List<String> events(int document, int sentence) throws IOException {
+		return read(index.ranges(document, sentence));
+	}
+
+	/** The events for every sentence of one document, in the order they were logged. */
+	public List<String> events(int document) throws IOException {
+		return read(index.ranges(document));
+	}
+
+	private List<String> read(List<EventLogIndex.Range> ranges) throws IOException {
+		List<String> events = new ArrayList<String>();
+		for (EventLogIndex.Range range : ranges) {
+			InputStream in = open(range.offset);
+			try {
+				if (binary) {
+					BinaryEventLog.Decoder decoder = new BinaryEventLog.Decoder(in, header);
+					StringBuilder line = new StringBuilder();
+					for (int e=-range.skip; e<range.events && decoder.next(line); e+=1) {
+						if (e >= 0) {
+							events.add(line.toString());
+						}
+						line.setLength(0);
+					}
+				} else {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+					String line;
+					for (int e=-range.skip; e<range.events && (line = reader.readLine()) != null; e+=1) {
+						if (e >= 0) {
+							events.add(line + "\n");
+						}
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return events;
+	}
+
+	/** Opens the log positioned at an offset from the index. */
+	private InputStream open(long offset) throws IOException {
+		FileInputStream file = new FileInputStream(logName);
+		if (!compressed) {
+			file.getChannel().position(offset);
+			return file;
+		}
+		int block = (int) (offset >>> 16);
+		file.getChannel().position(blockOffsets[block]);
+		InputStream in = new GZIPInputStream(file);
+		long skip = offset & 0xFFFF;
+		while (skip > 0) {
+			long skipped = in.skip(skip);
+			if (skipped <= 0) {
+				break;
+			}
+			skip -= skipped;
+		}
+		return in;
+	}
+
+	/** Walks the BGZF block headers, each of which gives the size of its block. */
+	private static long[] blockOffsets(String logName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(logName, "r");
+		try {
+			List<Long> offsets = new ArrayList<Long>();
+			long offset = 0;
+			long length = file.length();
+			byte[] header = new byte[18];
+			while (offset + header.length <= length) {
+				file.seek(offset);
+				file.readFully(header);
+				if ((header[0] & 0xFF) != 0x1f || (header[1] & 0xFF) != 0x8b || header[12] != 'B' || header[13] != 'C') {
+					throw new IOException(logName + " is not block compressed");
+				}
+				offsets.add(offset);
+				offset += ((header[16] & 0xFF) | (header[17] & 0xFF) << 8) + 1;
+			}
+			long[] array = new long[offsets.size()];
+			for (int i=0; i<array.length; i+=1) {
+				array[i] = offsets.get(i);
+			}
+			return array;
+		} finally {
+			file.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (header != null) {
+			header.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length==2 || args.length==3) {
+
+			EventLogReader reader = new EventLogReader(args[0]);
+			Writer out = new OutputStreamWriter(System.out, "UTF-8");
+			try {
+				int document = Integer.parseInt(args[1]);
+				List<String> events = (args.length==3) ? reader.events(document, Integer.parseInt(args[2])) : reader.events(document);
+				for (String event : events) {
+					out.write(event);
+				}
+			} finally {
+				reader.close();
+				out.close();
+			}
+
+		} else {
+
+			System.err.println("Usage: EventLogReader log document [sentence]");
+
+		}
+	}
+
+}
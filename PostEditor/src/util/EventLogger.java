@@ -1,8 +1,11 @@
 package util;
 
+import java.awt.Component;
+import java.awt.Toolkit;
 import java.awt.event.ComponentEvent;
 import java.awt.event.FocusEvent;
 import java.awt.event.FocusListener;
+import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
@@ -10,156 +13,1264 @@ import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.io.Writer;
-import java.util.zip.GZIPOutputStream;
+import java.lang.reflect.Field;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.Segment;
 
+
+/**
+ * Logs Swing input events, one tab-separated line per event.
+ * <p>
+ * Each file of the log starts with a header line,
+ * <code># start=</code><i>ISO 8601 time</i><code> epochMillis=</code><i>milliseconds since 1970</i>,
+ * recording the wall-clock time at which the logger started. Event times are measured from then with
+ * {@link System#nanoTime()}, which is unaffected by adjustments to the clock, and logged as milliseconds
+ * with six decimal places.
+ * <p>
+ * The listener methods run on the Event Dispatch Thread, which is the only producer.
+ * They copy what the log line needs into a preallocated slot of a ring buffer and return;
+ * formatting, compression and writing happen on a separate consumer thread,
+ * so a flood of mouse motion never waits on the log file.
+ * A source that is a {@link LoggedComponent} is described from its cached context rather than its <code>toString()</code>,
+ * and the consumer encodes each line straight into a reusable byte buffer.
+ * The event's parameters read as its <code>paramString()</code> would, but are written from fields copied into the slot
+ * with cached key and modifier texts, so neither thread builds a string for them.
+ * The exception is a key event on a runtime that keeps KeyEvent's platform codes from reflection (see {@link #RAW_CODES}),
+ * whose parameters are still taken from its <code>paramString()</code>, so that the log keeps the same fields.
+ * <p>
+ * When the ring buffer is full, the configured {@link OverflowPolicy} decides what happens to the event.
+ * <p>
+ * Mouse motion can be thinned before it reaches the buffer, as the {@link MotionPolicy} says;
+ * every other event is always logged.
+ * A coalesced run of motion events is logged as its first event, with
+ * <code>until=</code><i>time</i><code>,(</code><i>x</i><code>,</code><i>y</i><code>),count=</code><i>n</i>
+ * in the otherwise empty third column giving the time and position of its last event.
+ * <p>
+ * A log file named <code>*.elog</code> or <code>*.elog.gz</code> is written in the compact {@link BinaryEventLog} form instead of text.
+ * A <code>*.gz</code> log is compressed in independent blocks on a small pool of threads (see {@link BlockCompressedOutputStream}).
+ * The log can be rotated into a new file by size or by age.
+ * Beside each file, except a <code>.zip</code>, an {@link EventLogIndex} records where the events of each sentence are,
+ * so that an {@link EventLogReader} can go straight to them.
+ */
 public class EventLogger implements MouseListener, MouseMotionListener, MouseWheelListener, KeyListener, FocusListener {
 
-	private final Writer writer;
-	
+	/** What the producer does with an event when the consumer has fallen behind. */
+	public enum OverflowPolicy {
+		/** Wait for the consumer to free a slot; no event is lost. */
+		BLOCK,
+		/** Discard the event. */
+		DROP,
+		/** Once the buffer is half full, keep only one in every {@link EventLogger#SAMPLE_RATE_PROPERTY} events; discard the event if it is full. */
+		SAMPLE
+	}
+
+	/**
+	 * When logged events are handed to the operating system, and so survive a crash of the editor.
+	 * Each flush of a <code>.gz</code> log ends a compressed block, so flushing often costs compression.
+	 */
+	public enum FlushPolicy {
+		/** After every event. */
+		EVENT,
+		/** Whenever {@link EventLogger#FLUSH_INTERVAL_PROPERTY} has passed since the last flush and there is something to flush. */
+		PERIODIC,
+		/** Only when the editor exits. */
+		SHUTDOWN
+	}
+
+	/** Which mouse motion events are logged. */
+	public enum MotionPolicy {
+		/** Every MOUSE_MOVED and MOUSE_DRAGGED event. */
+		ALL,
+		/** One record for each run of consecutive motion events of the same kind over the same component. */
+		COALESCE,
+		/** At most one motion event per {@link EventLogger#MOTION_INTERVAL_PROPERTY} over the same component. */
+		SAMPLE
+	}
+
+	/** System property giving the number of slots in the ring buffer, rounded up to a power of two. */
+	public static final String CAPACITY_PROPERTY = "eventlogger.capacity";
+
+	/** System property naming the {@link OverflowPolicy}: block, drop or sample. */
+	public static final String OVERFLOW_PROPERTY = "eventlogger.overflow";
+
+	/** System property giving how many events under the {@link OverflowPolicy#SAMPLE} policy are discarded for every one kept. */
+	public static final String SAMPLE_RATE_PROPERTY = "eventlogger.sampleRate";
+
+	/** System property naming the {@link MotionPolicy}: all, coalesce or sample. */
+	public static final String MOTION_PROPERTY = "eventlogger.motion";
+
+	/** System property giving the sampling interval in milliseconds of the {@link MotionPolicy#SAMPLE} policy. */
+	public static final String MOTION_INTERVAL_PROPERTY = "eventlogger.motionInterval";
+
+	/** System property giving the size in bytes after which the log moves on to a new file; unset or 0 never rotates by size. */
+	public static final String ROTATE_BYTES_PROPERTY = "eventlogger.rotateBytes";
+
+	/** System property giving the time in milliseconds after which the log moves on to a new file; unset or 0 never rotates by time. */
+	public static final String ROTATE_MILLIS_PROPERTY = "eventlogger.rotateMillis";
+
+	/** System property naming the {@link FlushPolicy}: event, periodic or shutdown. */
+	public static final String FLUSH_PROPERTY = "eventlogger.flush";
+
+	/** System property giving the interval in milliseconds of the {@link FlushPolicy#PERIODIC} policy. */
+	public static final String FLUSH_INTERVAL_PROPERTY = "eventlogger.flushInterval";
+
+	/** System property that, when "true", forces the log file to disk at every flush rather than leaving it to the operating system. */
+	public static final String SYNC_PROPERTY = "eventlogger.sync";
+
+	/** System property that, when "false", stops the {@link EventLogIndex} being written beside the log. */
+	public static final String INDEX_PROPERTY = "eventlogger.index";
+
+	/** System property giving the number of threads compressing the blocks of a <code>.gz</code> log. */
+	public static final String COMPRESSION_THREADS_PROPERTY = "eventlogger.compressionThreads";
+
+	private static final int DEFAULT_CAPACITY = 8192;
+	private static final int DEFAULT_SAMPLE_RATE = 10;
+	private static final long DEFAULT_MOTION_INTERVAL = 50;
+	private static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] TAB = "TAB".getBytes(UTF8);
+	private static final byte[] UNTIL = "until=".getBytes(UTF8);
+	private static final byte[] COUNT = ",count=".getBytes(UTF8);
+
+	/** Key codes below this have their key text cached by the consumer. */
+	private static final int KEY_TEXTS = 1024;
+
+	/** Modifier masks below this, which cover every modifier key and the first three mouse buttons, have their text cached by the consumer. */
+	private static final int MODIFIER_TEXTS = 1 << 14;
+
+	/**
+	 * KeyEvent's private <code>rawCode</code>, <code>primaryLevelUnicode</code> and <code>scancode</code>, which its
+	 * <code>paramString()</code> reports but nothing public returns; null if the runtime does not open
+	 * <code>java.awt.event</code> to reflection, in which case key events are logged from their <code>paramString()</code>.
+	 * From Java 9 opening it takes <code>--add-opens java.desktop/java.awt.event=ALL-UNNAMED</code>.
+	 */
+	private static final Field[] RAW_CODES = rawCodeFields();
+
+	/** Bytes of a binary log between reset points; about one compressed block. */
+	private static final long RESET_INTERVAL = BlockCompressedOutputStream.BLOCK_SIZE;
+
+	/**
+	 * The fields of an event that the log line needs, copied on the Event Dispatch Thread.
+	 * Once the text buffer has grown to the longest text, filling a slot for a mouse event from a {@link LoggedComponent}
+	 * allocates nothing, nor for a key event where {@link EventLogger#RAW_CODES} can be read.
+	 */
+	private static class Slot {
+		long time;
+		int id;
+		int keyCode;
+		char keyChar;
+		/** The fields that the event's <code>paramString()</code> reports, from which the consumer writes the parameters. */
+		int x;
+		int y;
+		int xOnScreen;
+		int yOnScreen;
+		int button;
+		int clickCount;
+		int modifiers;
+		int modifiersEx;
+		int keyLocation;
+		int extendedKeyCode;
+		long rawCode;
+		long primaryLevelUnicode;
+		long scancode;
+		/** Whether the event is a mouse wheel event, with the fields that follow. */
+		boolean wheel;
+		int scrollType;
+		int scrollAmount;
+		int wheelRotation;
+		double preciseWheelRotation;
+		/**
+		 * The parameter string of a key event whose platform codes could not be read (see {@link EventLogger#RAW_CODES}),
+		 * up to its first tab; otherwise null, and the parameters are written from the fields above.
+		 */
+		String parameters;
+		boolean temporary;
+		FocusEvent.Cause cause;
+		/**
+		 * The context of a focus event's opposite component, if it is a {@link LoggedComponent} whose context holds a tab,
+		 * and so all that is logged of it; otherwise null, and the opposite is described by <code>opposite</code>.
+		 */
+		byte[] oppositeContext;
+		String opposite;
+		/** The context of a {@link LoggedComponent} source; otherwise null, and the source is described by <code>source</code>. */
+		byte[] context;
+		String source;
+		boolean hasText;
+		int caret;
+		int selectionStart;
+		int selectionEnd;
+		char[] text = new char[256];
+		int textLength;
+		/** Number of motion events folded into this one; their last one's time and position follow. */
+		int count;
+		long endTime;
+		int endX;
+		int endY;
+
+		void copy(Slot from) {
+			time = from.time;
+			id = from.id;
+			keyCode = from.keyCode;
+			keyChar = from.keyChar;
+			x = from.x;
+			y = from.y;
+			xOnScreen = from.xOnScreen;
+			yOnScreen = from.yOnScreen;
+			button = from.button;
+			clickCount = from.clickCount;
+			modifiers = from.modifiers;
+			modifiersEx = from.modifiersEx;
+			keyLocation = from.keyLocation;
+			extendedKeyCode = from.extendedKeyCode;
+			rawCode = from.rawCode;
+			primaryLevelUnicode = from.primaryLevelUnicode;
+			scancode = from.scancode;
+			wheel = from.wheel;
+			scrollType = from.scrollType;
+			scrollAmount = from.scrollAmount;
+			wheelRotation = from.wheelRotation;
+			preciseWheelRotation = from.preciseWheelRotation;
+			parameters = from.parameters;
+			temporary = from.temporary;
+			cause = from.cause;
+			oppositeContext = from.oppositeContext;
+			opposite = from.opposite;
+			context = from.context;
+			source = from.source;
+			hasText = from.hasText;
+			caret = from.caret;
+			selectionStart = from.selectionStart;
+			selectionEnd = from.selectionEnd;
+			ensureText(from.textLength);
+			System.arraycopy(from.text, 0, text, 0, from.textLength);
+			textLength = from.textLength;
+			count = from.count;
+			endTime = from.endTime;
+			endX = from.endX;
+			endY = from.endY;
+		}
+
+		void ensureText(int length) {
+			if (text.length < length) {
+				text = new char[Math.max(length, text.length * 2)];
+			}
+		}
+
+		void release() {
+			parameters = null;
+			cause = null;
+			oppositeContext = null;
+			opposite = null;
+			context = null;
+			source = null;
+		}
+	}
+
+	private final String fileName;
+	private final long rotateBytes;
+	private final long rotateMillis;
+	private final int compressionThreads;
+	/** Compresses the blocks of a <code>.gz</code> log; null for other logs. */
+	private final ExecutorService compressor;
+
+	/**
+	 * The current file, of which exactly one of <code>out</code> and <code>encoder</code> is used, depending on its name.
+	 * Used only by the consumer, and by the shutdown hook once the consumer has stopped.
+	 */
+	private FileChannel file;
+	private OutputStream out;
+	private BinaryEventLog.Encoder encoder;
+	private int part;
+	private long partStart;
+	/** Where the next event goes: the block stream of a <code>.gz</code> file, otherwise the count of bytes written. */
+	private BlockCompressedOutputStream blocks;
+	private CountingOutputStream counter;
+	/** Null if the log is not indexed. */
+	private EventLogIndex.Writer index;
+	private final boolean indexed;
+	/** Where the last reset point of an indexed binary log is, as an offset, an event number and a count of bytes written. */
+	private long resetOffset;
+	private long resetEvent;
+	private long resetBytes;
+
+	private final Slot[] slots;
+	private final int mask;
+	private final OverflowPolicy overflow;
+	private final int sampleRate;
+	private final MotionPolicy motion;
+	/** In nanoseconds. */
+	private final long motionInterval;
+
+	/** The time the logger started, by the wall clock and by {@link System#nanoTime()}. */
+	private final long epochMillis;
+	private final long startNanos;
+
+	private final FlushPolicy flush;
+	/** In nanoseconds. */
+	private final long flushInterval;
+	private final boolean sync;
+	/** When the consumer last flushed, and whether it has written anything since. */
+	private long lastFlush;
+	private boolean unflushed;
+
+	/** The last motion event's source and kind, and the time last sampled; used only by the producer. */
+	private Object motionSource;
+	private int motionId;
+	private long motionTime;
+	/** The coalesced motion run not yet published, if its count is not 0; used only by the producer. */
+	private final Slot run = new Slot();
+
+	/** Reads a text field's contents without copying them into a new string; used only by the producer. */
+	private final Segment segment = new Segment();
+
+	/** Next sequence number the producer will publish; written only by the producer. */
+	private final AtomicLong head = new AtomicLong();
+	/** Next sequence number the consumer will write; written only by the consumer. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Set by the consumer before it parks on an empty buffer, and by the producer before it parks on a full one,
+	 * so that the other thread unparks it once it has published an event or freed a slot.
+	 * Each sets its flag and then reads the other's sequence number, and the other writes its sequence number
+	 * and then reads the flag, both as volatiles, so at least one of them sees the other's write.
+	 */
+	private volatile boolean consumerSleeping;
+	private volatile boolean producerSleeping;
+	/** The thread blocked in {@link #awaitSlot(long)}, if any. */
+	private volatile Thread producer;
+
+	private volatile boolean closed;
+	private volatile long dropped;
+	private long sampled;
+
+	private final Thread consumer;
+
 	public EventLogger(String fileName) throws UnsupportedEncodingException, IOException {
-		
-		final FileOutputStream output = new FileOutputStream(fileName);
+		this(fileName,
+				Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+				OverflowPolicy.valueOf(System.getProperty(OVERFLOW_PROPERTY, OverflowPolicy.BLOCK.name()).toUpperCase()),
+				Integer.getInteger(SAMPLE_RATE_PROPERTY, DEFAULT_SAMPLE_RATE),
+				MotionPolicy.valueOf(System.getProperty(MOTION_PROPERTY, MotionPolicy.ALL.name()).toUpperCase()),
+				Long.getLong(MOTION_INTERVAL_PROPERTY, DEFAULT_MOTION_INTERVAL));
+	}
 
+	public EventLogger(String fileName, int capacity, OverflowPolicy overflow, int sampleRate, MotionPolicy motion, long motionInterval) throws UnsupportedEncodingException, IOException {
+		
+		this.fileName = fileName;
+		this.epochMillis = System.currentTimeMillis();
+		this.startNanos = System.nanoTime();
+		this.flush = FlushPolicy.valueOf(System.getProperty(FLUSH_PROPERTY, FlushPolicy.PERIODIC.name()).toUpperCase());
+		this.flushInterval = TimeUnit.MILLISECONDS.toNanos(Long.getLong(FLUSH_INTERVAL_PROPERTY, DEFAULT_FLUSH_INTERVAL));
+		this.sync = Boolean.getBoolean(SYNC_PROPERTY);
+		this.indexed = Boolean.parseBoolean(System.getProperty(INDEX_PROPERTY, "true"));
+		this.lastFlush = startNanos;
+		this.rotateBytes = Long.getLong(ROTATE_BYTES_PROPERTY, 0);
+		this.rotateMillis = Long.getLong(ROTATE_MILLIS_PROPERTY, 0);
+		this.compressionThreads = Math.max(1, Integer.getInteger(COMPRESSION_THREADS_PROPERTY, Math.min(2, Runtime.getRuntime().availableProcessors())));
 		if (fileName.endsWith(".gz")) {
-			writer = new OutputStreamWriter(new GZIPOutputStream(output), "UTF-8");
-		} else if (fileName.endsWith(".zip")) {
-			writer = new OutputStreamWriter(new ZipOutputStream(output), "UTF-8");
+			this.compressor = Executors.newFixedThreadPool(compressionThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Event log compressor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		} else {
-			writer = new OutputStreamWriter(output, "UTF-8");
+			this.compressor = null;
+		}
+		open();
+		segment.setPartialReturn(true);
+
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.slots = new Slot[size];
+		for (int i=0; i<size; i+=1) {
+			slots[i] = new Slot();
 		}
+		this.mask = size - 1;
+		this.overflow = overflow;
+		this.sampleRate = Math.max(1, sampleRate);
+		this.motion = motion;
+		this.motionInterval = TimeUnit.MILLISECONDS.toNanos(motionInterval);
+
+		this.consumer = new Thread("Event logger") {
+			public void run() {
+				consume();
+			}
+		};
+		consumer.setDaemon(true);
+		consumer.start();
 		
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			public void run() {
+				closed = true;
+				LockSupport.unpark(consumer);
+				Thread blocked = producer;
+				if (blocked != null) {
+					LockSupport.unpark(blocked);
+				}
 				try {
-					writer.close();
-				} catch (IOException e) {
+					consumer.join();
+				} catch (InterruptedException e) {
 					e.printStackTrace();
 				}
+				if (dropped > 0) {
+					System.err.println("Event logger dropped " + dropped + " events");
+				}
 				try {
-					output.close();
+					close();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
+				if (compressor != null) {
+					compressor.shutdown();
+				}
 			}
 		});
 	}
 	
-	private long startTime = -1;
-	
-	private long elapsedMilliseconds() {
-		
-		if (startTime < 0) {
-			startTime = System.currentTimeMillis();
+	/**
+	 * Opens the next file of the log: the file named when the logger was created,
+	 * then, after each rotation, the same name with <code>-1</code>, <code>-2</code>, ... inserted before its first dot.
+	 * A binary log starts afresh in each file, so every file can be decoded on its own.
+	 */
+	private void open() throws IOException {
+		String name = fileName;
+		if (part > 0) {
+			int start = fileName.lastIndexOf(File.separatorChar) + 1;
+			int dot = fileName.indexOf('.', start);
+			int end = (dot > start) ? dot : fileName.length();
+			name = fileName.substring(0, end) + "-" + part + fileName.substring(end);
 		}
-		
-		long now = System.currentTimeMillis();
-		long elapsed = now - startTime;
-		return elapsed;
+		FileOutputStream output = new FileOutputStream(name);
+		file = output.getChannel();
+
+		OutputStream stream;
+		blocks = null;
+		if (name.endsWith(".gz")) {
+			stream = blocks = new BlockCompressedOutputStream(output, compressor, compressionThreads);
+		} else if (name.endsWith(".zip")) {
+			ZipOutputStream zip = new ZipOutputStream(output);
+			String entry = new File(name).getName();
+			zip.putNextEntry(new ZipEntry(entry.substring(0, entry.length() - ".zip".length())));
+			stream = new BufferedOutputStream(zip);
+		} else {
+			stream = new BufferedOutputStream(output);
+		}
+		stream = counter = new CountingOutputStream(stream);
+		index = (indexed && !name.endsWith(".zip")) ? new EventLogIndex.Writer(name) : null;
+
+		if (name.endsWith(".elog") || name.endsWith(".elog.gz")) {
+			out = null;
+			encoder = new BinaryEventLog.Encoder(stream, epochMillis);
+		} else {
+			out = stream;
+			encoder = null;
+			out.write(header(epochMillis).getBytes(UTF8));
+		}
+		partStart = System.currentTimeMillis();
 	}
-	
+
+	private void close() throws IOException {
+		try {
+			if (encoder != null) {
+				encoder.close();
+			} else {
+				out.close();
+			}
+		} finally {
+			if (index != null) {
+				index.close();
+			}
+		}
+	}
+
+	/** Counts the bytes written to an uncompressed file. */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count += 1;
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int n) throws IOException {
+			out.write(b, offset, n);
+			count += n;
+		}
+
+	}
+
+	/** Position in the current file of the next event, as recorded in the index. */
+	private long position() {
+		return (blocks != null) ? blocks.getVirtualOffset() : counter.count;
+	}
+
+	/**
+	 * Runs on the consumer thread before each event is written: starts a new range of the index
+	 * if the event is for a different sentence from the last.
+	 * A binary log gets a reset point at its first event and then once {@link #RESET_INTERVAL} bytes
+	 * have been written since the last, rather than at every range, which would throw away the encoder's
+	 * interned strings and diffs whenever the mouse crosses into another sentence;
+	 * its ranges are read from the last reset point before them.
+	 */
+	private void index(Slot slot) throws IOException {
+		int document = -1;
+		int sentence = -1;
+		if (slot.context != null) {
+			// A LoggedComponent's context starts "document \t sentence \t"
+			int tab = indexOf(slot.context, (byte) '\t', 0);
+			int next = (tab < 0) ? -1 : indexOf(slot.context, (byte) '\t', tab + 1);
+			if (next >= 0) {
+				document = parseInt(slot.context, 0, tab);
+				sentence = parseInt(slot.context, tab + 1, next);
+			}
+		}
+		if (encoder != null && (index.events() == 0 || counter.count - resetBytes >= RESET_INTERVAL)) {
+			resetOffset = position();
+			resetEvent = index.events();
+			resetBytes = counter.count;
+			encoder.reset(slot.time);
+		}
+		if (index.isNewRange(document, sentence)) {
+			if (encoder != null) {
+				index.startRange(document, sentence, resetOffset, (int) (index.events() - resetEvent));
+			} else {
+				index.startRange(document, sentence, position(), 0);
+			}
+		}
+		index.event();
+	}
+
+	private static int indexOf(byte[] bytes, byte b, int from) {
+		for (int i=from; i<bytes.length; i+=1) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** Parses a decimal number, or returns -1 if the bytes are not one. */
+	private static int parseInt(byte[] bytes, int start, int end) {
+		boolean negative = (start < end && bytes[start] == '-');
+		int value = 0;
+		for (int i=negative ? start+1 : start; i<end; i+=1) {
+			if (bytes[i] < '0' || bytes[i] > '9') {
+				return -1;
+			}
+			value = value * 10 + (bytes[i] - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/** Runs on the consumer thread after each event: moves on to the next file once the current one is big or old enough. */
+	private void rotateIfDue() throws IOException {
+		if ((rotateBytes > 0 && file.position() >= rotateBytes) || (rotateMillis > 0 && System.currentTimeMillis() - partStart >= rotateMillis)) {
+			close();
+			part += 1;
+			open();
+		}
+	}
+
+	/** The first line of each file of a text log. */
+	static String header(long epochMillis) {
+		SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return "# start=" + iso.format(new Date(epochMillis)) + " epochMillis=" + epochMillis + "\n";
+	}
+
+	/** Appends a time in nanoseconds as milliseconds with six decimal places. */
+	static void appendTime(long nanos, StringBuilder str) {
+		str.append(nanos / 1000000).append('.');
+		String fraction = Long.toString(1000000 + nanos % 1000000);
+		str.append(fraction, 1, fraction.length());
+	}
+
+	private static void appendTime(long nanos, LogBuffer line) {
+		line.append(nanos / 1000000).append('.');
+		long fraction = nanos % 1000000;
+		for (long digit=100000; digit>fraction && digit>1; digit/=10) {
+			line.append('0');
+		}
+		line.append(fraction);
+	}
+
+	/** Nanoseconds since the logger started. */
+	private long elapsedNanoseconds() {
+		return System.nanoTime() - startNanos;
+	}
+
+	/** Runs on the producer thread. */
 	private void log(ComponentEvent e) {
-		
-		StringBuilder str = new StringBuilder();
-		
-		str.append(elapsedMilliseconds());
-		str.append('\t');
-		
-		switch(e.getID()) {
+		long time = elapsedNanoseconds();
+		if (motion != MotionPolicy.ALL && (e.getID() == MouseEvent.MOUSE_MOVED || e.getID() == MouseEvent.MOUSE_DRAGGED)) {
+			logMotion((MouseEvent) e, time);
+		} else {
+			publishRun();
+			publish(e, time);
+		}
+	}
+
+	/** Extends or starts a coalesced run, or logs the event if the sampling interval has passed. */
+	private void logMotion(MouseEvent e, long time) {
+		boolean sameSource = e.getSource() == motionSource && e.getID() == motionId;
+		if (motion == MotionPolicy.COALESCE) {
+			if (sameSource && run.count > 0) {
+				run.count += 1;
+			} else {
+				publishRun();
+				capture(run, e, time);
+			}
+			run.endTime = time;
+			run.endX = e.getX();
+			run.endY = e.getY();
+		} else if (!sameSource || time - motionTime >= motionInterval) {
+			motionTime = time;
+			publish(e, time);
+		}
+		motionSource = e.getSource();
+		motionId = e.getID();
+	}
+
+	private void publish(ComponentEvent e, long time) {
+		Slot slot = claim();
+		if (slot != null) {
+			capture(slot, e, time);
+			publish();
+		}
+	}
+
+	/**
+	 * Publishes the coalesced motion run still open, which is otherwise only logged when the next event ends it.
+	 * Call on the Event Dispatch Thread before exiting: the shutdown hook cannot, as the run belongs to that thread.
+	 */
+	public void publishPendingMotion() {
+		publishRun();
+	}
+
+	/** Publishes the open coalesced motion run, if there is one. */
+	private void publishRun() {
+		if (run.count == 0) {
+			return;
+		}
+		Slot slot = claim();
+		if (slot != null) {
+			slot.copy(run);
+			publish();
+		}
+		run.release();
+		run.count = 0;
+	}
+
+	/** Copies what the log line needs from the event and its source, which may only be read on this thread. */
+	private void capture(Slot slot, ComponentEvent e, long time) {
+		slot.time = time;
+		slot.id = e.getID();
+		slot.count = 1;
+		slot.parameters = null;
+		if (e instanceof MouseEvent) {
+			captureMouse(slot, (MouseEvent) e);
+		} else if (e instanceof KeyEvent) {
+			captureKey(slot, (KeyEvent) e);
+		} else if (e instanceof FocusEvent) {
+			captureFocus(slot, (FocusEvent) e);
+		}
+
+		Object source = e.getSource();
+		if (source instanceof LoggedComponent) {
+			LoggedComponent component = (LoggedComponent) source;
+			slot.context = component.logContext();
+			slot.source = null;
+			JTextComponent field = component.loggedText();
+			slot.hasText = (field != null);
+			if (field != null) {
+				slot.caret = field.getCaretPosition();
+				slot.selectionStart = field.getSelectionStart();
+				slot.selectionEnd = field.getSelectionEnd();
+				copyText(field.getDocument(), slot);
+			}
+		} else {
+			slot.context = null;
+			slot.source = source.toString();
+			slot.hasText = false;
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private static void captureMouse(Slot slot, MouseEvent e) {
+		slot.x = e.getX();
+		slot.y = e.getY();
+		slot.xOnScreen = e.getXOnScreen();
+		slot.yOnScreen = e.getYOnScreen();
+		slot.button = e.getButton();
+		slot.clickCount = e.getClickCount();
+		slot.modifiers = e.getModifiers();
+		slot.modifiersEx = e.getModifiersEx();
+		slot.wheel = (e instanceof MouseWheelEvent);
+		if (slot.wheel) {
+			MouseWheelEvent wheel = (MouseWheelEvent) e;
+			slot.scrollType = wheel.getScrollType();
+			slot.scrollAmount = wheel.getScrollAmount();
+			slot.wheelRotation = wheel.getWheelRotation();
+			slot.preciseWheelRotation = wheel.getPreciseWheelRotation();
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private static void captureKey(Slot slot, KeyEvent e) {
+		slot.keyCode = e.getKeyCode();
+		slot.keyChar = e.getKeyChar();
+		slot.modifiers = e.getModifiers();
+		slot.modifiersEx = e.getModifiersEx();
+		slot.keyLocation = e.getKeyLocation();
+		slot.extendedKeyCode = e.getExtendedKeyCode();
+		if (RAW_CODES != null) {
+			try {
+				slot.rawCode = RAW_CODES[0].getLong(e);
+				slot.primaryLevelUnicode = RAW_CODES[1].getLong(e);
+				slot.scancode = RAW_CODES[2].getLong(e);
+				return;
+			} catch (IllegalAccessException exception) {
+				// The fields were made accessible when they were looked up
+			}
+		}
+		String parameters = e.paramString();
+		int tab = parameters.indexOf('\t');
+		slot.parameters = (tab < 0) ? parameters : parameters.substring(0, tab);
+	}
+
+	/** An opposite component that is not a {@link LoggedComponent} is described by its <code>toString()</code>, which may only be read on this thread. */
+	private static void captureFocus(Slot slot, FocusEvent e) {
+		slot.temporary = e.isTemporary();
+		slot.cause = e.getCause();
+		Component opposite = e.getOppositeComponent();
+		byte[] context = (opposite instanceof LoggedComponent) ? ((LoggedComponent) opposite).logContext() : null;
+		if (context != null && indexOf(context, (byte) '\t', 0) >= 0) {
+			slot.oppositeContext = context;
+			slot.opposite = null;
+		} else {
+			slot.oppositeContext = null;
+			slot.opposite = String.valueOf(opposite);
+		}
+	}
+
+	/** KeyEvent's private platform codes, made accessible, or null if they cannot be. */
+	private static Field[] rawCodeFields() {
+		try {
+			Field[] fields = {
+				KeyEvent.class.getDeclaredField("rawCode"),
+				KeyEvent.class.getDeclaredField("primaryLevelUnicode"),
+				KeyEvent.class.getDeclaredField("scancode")
+			};
+			for (Field field : fields) {
+				field.setAccessible(true);
+			}
+			return fields;
+		} catch (NoSuchFieldException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// A SecurityException, or from Java 9 an InaccessibleObjectException
+			return null;
+		}
+	}
+
+	private void copyText(Document document, Slot slot) {
+		int length = document.getLength();
+		slot.ensureText(length);
+		int copied = 0;
+		try {
+			while (copied < length) {
+				document.getText(copied, length - copied, segment);
+				System.arraycopy(segment.array, segment.offset, slot.text, copied, segment.count);
+				copied += segment.count;
+			}
+		} catch (BadLocationException e) {
+			// The document is only changed on this thread, so its length cannot be out of date
+		}
+		slot.textLength = copied;
+	}
+
+	/**
+	 * Returns the slot for the next event, after waiting or deciding to drop the event as the overflow policy says.
+	 *
+	 * @return null if the event is dropped
+	 */
+	private Slot claim() {
+		long sequence = head.get();
+		long used = sequence - tail.get();
+		if (used >= slots.length || (overflow == OverflowPolicy.SAMPLE && used >= slots.length / 2 && sampled++ % sampleRate != 0)) {
+			if (overflow != OverflowPolicy.BLOCK || !awaitSlot(sequence)) {
+				dropped += 1;
+				return null;
+			}
+		}
+		return slots[(int) sequence & mask];
+	}
+
+	/** Hands the claimed slot to the consumer, waking it if it is asleep. */
+	private void publish() {
+		head.set(head.get() + 1);
+		if (consumerSleeping) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/** Whether the consumer has written every published event. */
+	boolean isDrained() {
+		return head.get() == tail.get();
+	}
+
+	/** The id of the consumer thread, for measuring what it allocates. */
+	long consumerId() {
+		return consumer.getId();
+	}
+
+	/** Waits until the slot for <code>sequence</code> is free, or returns false if the logger has been closed. */
+	private boolean awaitSlot(long sequence) {
+		producer = Thread.currentThread();
+		while (sequence - tail.get() >= slots.length) {
+			if (closed) {
+				return false;
+			}
+			producerSleeping = true;
+			if (sequence - tail.get() >= slots.length && !closed) {
+				LockSupport.park(this);
+			}
+			producerSleeping = false;
+		}
+		return true;
+	}
+
+	/** Runs on the consumer thread until the logger is closed and every published slot has been written. */
+	private void consume() {
+		LogBuffer line = new LogBuffer();
+		StringBuilder parameters = new StringBuilder();
+		Texts texts = new Texts();
+		long next = tail.get();
+		while (true) {
+			long available = head.get();
+			if (next == available) {
+				if (closed && head.get() == next) {
+					break;
+				}
+				flushIfDue();
+				consumerSleeping = true;
+				if (head.get() == next && !closed) {
+					sleep();
+				}
+				consumerSleeping = false;
+				continue;
+			}
+			for (; next < available; next+=1) {
+				Slot slot = slots[(int) next & mask];
+				line.clear();
+				try {
+					if (index != null) {
+						index(slot);
+					}
+					parameters.setLength(0);
+					appendParameters(slot, texts, parameters);
+					if (encoder != null) {
+						encoder.write(slot.time, slot.id, slot.keyCode, slot.keyChar, slot.count, slot.endTime, slot.endX, slot.endY, parameters, source(slot, line));
+					} else {
+						format(slot, texts, parameters, line);
+						line.writeTo(out);
+					}
+					unflushed = true;
+					if (flush == FlushPolicy.EVENT) {
+						flush();
+					}
+					rotateIfDue();
+				} catch (IOException exception) {
+					exception.printStackTrace();
+					System.err.println(line);
+				}
+				slot.release();
+				tail.set(next + 1);
+			}
+			if (producerSleeping) {
+				LockSupport.unpark(producer);
+			}
+		}
+	}
+
+	/** Parks the consumer until the producer wakes it, or until a periodic flush is due. */
+	private void sleep() {
+		if (flush == FlushPolicy.PERIODIC && unflushed) {
+			LockSupport.parkNanos(this, lastFlush + flushInterval - System.nanoTime());
+		} else {
+			LockSupport.park(this);
+		}
+	}
+
+	/** Runs on the consumer thread whenever it has caught up with the producer. */
+	private void flushIfDue() {
+		if (flush == FlushPolicy.PERIODIC && unflushed && System.nanoTime() - lastFlush >= flushInterval) {
+			try {
+				flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void flush() throws IOException {
+		if (encoder != null) {
+			encoder.flush();
+		} else {
+			out.flush();
+		}
+		if (sync) {
+			file.force(false);
+		}
+		if (index != null) {
+			index.flush();
+		}
+		lastFlush = System.nanoTime();
+		unflushed = false;
+	}
+
+	/** The description of the slot's source, as its <code>toString()</code> would have given it, built in the cleared <code>buffer</code>. */
+	private static String source(Slot slot, LogBuffer buffer) {
+		if (slot.context == null) {
+			return slot.source;
+		}
+		appendSource(slot, buffer);
+		return buffer.toString();
+	}
+
+	private static void appendSource(Slot slot, LogBuffer line) {
+		if (slot.context == null) {
+			line.append(slot.source);
+			return;
+		}
+		line.append(slot.context);
+		if (slot.hasText) {
+			if (slot.selectionStart == slot.selectionEnd) {
+				line.append(slot.caret);
+			} else {
+				line.append(slot.selectionStart).append('-').append(slot.selectionEnd);
+			}
+			line.append('\t');
+			line.append(slot.text, 0, slot.textLength);
+		}
+	}
+
+	/** Describes the end of a coalesced motion run; a single event is described by nothing. */
+	private static void appendRun(Slot slot, LogBuffer line) {
+		if (slot.count > 1) {
+			line.append(UNTIL);
+			appendTime(slot.endTime, line);
+			line.append(',').append('(').append(slot.endX).append(',').append(slot.endY).append(')').append(COUNT).append(slot.count);
+		}
+	}
+
+	/**
+	 * The key and modifier texts that parameters are written with, each built by KeyEvent or InputEvent
+	 * once and kept for the common key codes and modifier masks; used only by the consumer.
+	 */
+	private static class Texts {
+
+		private static final int MOUSE = 0;
+		private static final int KEY = 1;
+		private static final int EXTENDED = 2;
+
+		private final String[] keys = new String[KEY_TEXTS];
+		private final String[][] modifiers = new String[3][MODIFIER_TEXTS];
+		private final String undefined = Toolkit.getProperty("AWT.undefined", "Undefined");
+
+		String key(int keyCode) {
+			if (keyCode < 0 || keyCode >= keys.length) {
+				return KeyEvent.getKeyText(keyCode);
+			}
+			if (keys[keyCode] == null) {
+				keys[keyCode] = KeyEvent.getKeyText(keyCode);
+			}
+			return keys[keyCode];
+		}
+
+		String mouseModifiers(int mask) {
+			return modifiers(MOUSE, mask);
+		}
+
+		String keyModifiers(int mask) {
+			return modifiers(KEY, mask);
+		}
+
+		String extendedModifiers(int mask) {
+			return modifiers(EXTENDED, mask);
+		}
+
+		private String modifiers(int kind, int mask) {
+			if (mask < 0 || mask >= MODIFIER_TEXTS) {
+				return text(kind, mask);
+			}
+			if (modifiers[kind][mask] == null) {
+				modifiers[kind][mask] = text(kind, mask);
+			}
+			return modifiers[kind][mask];
+		}
+
+		@SuppressWarnings("deprecation")
+		private static String text(int kind, int mask) {
+			switch (kind) {
+			case MOUSE:
+				return MouseEvent.getMouseModifiersText(mask);
+			case KEY:
+				return KeyEvent.getKeyModifiersText(mask);
+			default:
+				return InputEvent.getModifiersExText(mask);
+			}
+		}
+
+	}
+
+	/**
+	 * Appends what the event's <code>paramString()</code> would have returned, up to its first tab,
+	 * from the fields copied into the slot.
+	 */
+	private static void appendParameters(Slot slot, Texts texts, StringBuilder parameters) {
+		if (slot.parameters != null) {
+			parameters.append(slot.parameters);
+			return;
+		}
+		switch (slot.id) {
 		case MouseEvent.MOUSE_PRESSED:
-			str.append("MOUSE_PRESSED");
-			str.append('\t');
-			break;
 		case MouseEvent.MOUSE_RELEASED:
-			str.append("MOUSE_RELEASED");
-			str.append('\t');
-			break;
 		case MouseEvent.MOUSE_CLICKED:
-			str.append("MOUSE_CLICKED");
-			str.append('\t');
-			break;
 		case MouseEvent.MOUSE_ENTERED:
-			str.append("MOUSE_ENTERED");
-			str.append('\t');
-			break;
 		case MouseEvent.MOUSE_EXITED:
-			str.append("MOUSE_EXITED");
-			str.append('\t');
-			break;
 		case MouseEvent.MOUSE_MOVED:
-			str.append("MOUSE_MOVED");
-			str.append('\t');
-			break;
 		case MouseEvent.MOUSE_DRAGGED:
-			str.append("MOUSE_DRAGGED");
-			str.append('\t');
-			break;
 		case MouseEvent.MOUSE_WHEEL:
-			str.append("MOUSE_WHEEL");
-			str.append('\t');
+			appendMouseParameters(slot, texts, parameters);
 			break;
 		case KeyEvent.KEY_PRESSED:
-			str.append("KEY_PRESSED");
-			str.append('\t');
-			str.append(KeyEvent.getKeyText(((KeyEvent)e).getKeyCode()));
-			break;
 		case KeyEvent.KEY_RELEASED:
-			str.append("KEY_RELEASED");
-			str.append('\t');
-			str.append(KeyEvent.getKeyText(((KeyEvent)e).getKeyCode()));
-			break;
 		case KeyEvent.KEY_TYPED:
-			str.append("KEY_TYPED");
-			str.append('\t');
-			char c = ((KeyEvent)e).getKeyChar();
-			if (c=='\t') {
-				str.append("TAB");
-			} else {
-				str.append(c);
-			}	
+			appendKeyParameters(slot, texts, parameters);
 			break;
 		case FocusEvent.FOCUS_GAINED:
-			str.append("FOCUS_GAINED");
-			str.append('\t');
-			break;
 		case FocusEvent.FOCUS_LOST:
-			str.append("FOCUS_LOST");
-			str.append('\t');
+			appendFocusParameters(slot, parameters);
+			break;
+		}
+	}
+
+	private static void appendMouseParameters(Slot slot, Texts texts, StringBuilder parameters) {
+		parameters.append(BinaryEventLog.nameString(BinaryEventLog.code(slot.id)));
+		parameters.append(",(").append(slot.x).append(',').append(slot.y).append(')');
+		parameters.append(",absolute(").append(slot.xOnScreen).append(',').append(slot.yOnScreen).append(')');
+		if (slot.id != MouseEvent.MOUSE_DRAGGED && slot.id != MouseEvent.MOUSE_MOVED) {
+			parameters.append(",button=").append(slot.button);
+		}
+		if (slot.modifiers != 0) {
+			// paramString() describes the event's whole modifier mask, of which these are the two halves
+			parameters.append(",modifiers=").append(texts.mouseModifiers(slot.modifiers | slot.modifiersEx));
+		}
+		if (slot.modifiersEx != 0) {
+			parameters.append(",extModifiers=").append(texts.extendedModifiers(slot.modifiersEx));
+		}
+		parameters.append(",clickCount=").append(slot.clickCount);
+		if (slot.wheel) {
+			parameters.append(",scrollType=");
+			if (slot.scrollType == MouseWheelEvent.WHEEL_UNIT_SCROLL) {
+				parameters.append("WHEEL_UNIT_SCROLL");
+			} else if (slot.scrollType == MouseWheelEvent.WHEEL_BLOCK_SCROLL) {
+				parameters.append("WHEEL_BLOCK_SCROLL");
+			} else {
+				parameters.append("unknown scroll type");
+			}
+			parameters.append(",scrollAmount=").append(slot.scrollAmount);
+			parameters.append(",wheelRotation=").append(slot.wheelRotation);
+			parameters.append(",preciseWheelRotation=").append(slot.preciseWheelRotation);
+		}
+	}
+
+	private static void appendKeyParameters(Slot slot, Texts texts, StringBuilder parameters) {
+		parameters.append(BinaryEventLog.nameString(BinaryEventLog.code(slot.id)));
+		parameters.append(",keyCode=").append(slot.keyCode);
+		parameters.append(",keyText=").append(texts.key(slot.keyCode));
+		parameters.append(",keyChar=");
+		switch (slot.keyChar) {
+		case '\b':
+			parameters.append(texts.key(KeyEvent.VK_BACK_SPACE));
+			break;
+		case '\t':
+			parameters.append(texts.key(KeyEvent.VK_TAB));
+			break;
+		case '\n':
+			parameters.append(texts.key(KeyEvent.VK_ENTER));
+			break;
+		case '\u0018':
+			parameters.append(texts.key(KeyEvent.VK_CANCEL));
+			break;
+		case '\u001b':
+			parameters.append(texts.key(KeyEvent.VK_ESCAPE));
+			break;
+		case '\u007f':
+			parameters.append(texts.key(KeyEvent.VK_DELETE));
+			break;
+		case KeyEvent.CHAR_UNDEFINED:
+			parameters.append(texts.undefined).append(" keyChar");
 			break;
 		default:
-			str.append("UNKNOWN");
+			parameters.append('\'').append(slot.keyChar).append('\'');
+			break;
 		}
-		
-//		
-//		str.append('\t');
-//		str.append("XXX");
-//		
-		str.append('\t');
-		str.append(e.paramString().replaceFirst("\t.*", ""));
-//
-//		str.append('\t');
-//		str.append("YYY");
-		
-		str.append('\t');	 
-		str.append(e.getSource().toString());
-		
-		str.append('\n');
-		
-		try {
-			writer.append(str.toString());
-		} catch (IOException exception) {
-			exception.printStackTrace();
-			System.err.println(str.toString());
+		if (slot.modifiers != 0) {
+			parameters.append(",modifiers=").append(texts.keyModifiers(slot.modifiers));
+		}
+		if (slot.modifiersEx != 0) {
+			parameters.append(",extModifiers=").append(texts.extendedModifiers(slot.modifiersEx));
+		}
+		parameters.append(",keyLocation=");
+		switch (slot.keyLocation) {
+		case KeyEvent.KEY_LOCATION_STANDARD:
+			parameters.append("KEY_LOCATION_STANDARD");
+			break;
+		case KeyEvent.KEY_LOCATION_LEFT:
+			parameters.append("KEY_LOCATION_LEFT");
+			break;
+		case KeyEvent.KEY_LOCATION_RIGHT:
+			parameters.append("KEY_LOCATION_RIGHT");
+			break;
+		case KeyEvent.KEY_LOCATION_NUMPAD:
+			parameters.append("KEY_LOCATION_NUMPAD");
+			break;
+		default:
+			parameters.append("KEY_LOCATION_UNKNOWN");
+			break;
 		}
+		parameters.append(",rawCode=").append(slot.rawCode);
+		parameters.append(",primaryLevelUnicode=").append(slot.primaryLevelUnicode);
+		parameters.append(",scancode=").append(slot.scancode);
+		parameters.append(",extendedKeyCode=0x");
+		appendHex(slot.extendedKeyCode, parameters);
+	}
 
+	/** The opposite component's description is the only part of a focus event's parameters that may hold a tab, and ends them if it does. */
+	private static void appendFocusParameters(Slot slot, StringBuilder parameters) {
+		parameters.append(BinaryEventLog.nameString(BinaryEventLog.code(slot.id)));
+		parameters.append(slot.temporary ? ",temporary" : ",permanent");
+		parameters.append(",opposite=");
+		if (slot.oppositeContext != null) {
+			appendUtf8(slot.oppositeContext, 0, indexOf(slot.oppositeContext, (byte) '\t', 0), parameters);
+			return;
+		}
+		int tab = slot.opposite.indexOf('\t');
+		if (tab >= 0) {
+			parameters.append(slot.opposite, 0, tab);
+			return;
+		}
+		parameters.append(slot.opposite);
+		parameters.append(",cause=").append(slot.cause);
 	}
-	
+
+	/** Appends the value in hexadecimal as <code>Long.toHexString</code> would, sign-extended as KeyEvent keeps it. */
+	private static void appendHex(long value, StringBuilder str) {
+		int shift = 60;
+		while (shift > 0 && (value >>> shift) == 0) {
+			shift -= 4;
+		}
+		for (; shift>=0; shift-=4) {
+			str.append(Character.forDigit((int) (value >>> shift) & 0xF, 16));
+		}
+	}
+
+	/** Decodes well-formed UTF-8, such as a {@link LoggedComponent}'s context. */
+	private static void appendUtf8(byte[] bytes, int start, int end, StringBuilder str) {
+		int i = start;
+		while (i < end) {
+			int b = bytes[i] & 0xFF;
+			if (b < 0x80) {
+				str.append((char) b);
+				i += 1;
+			} else if (b < 0xE0) {
+				str.append((char) (((b & 0x1F) << 6) | (bytes[i + 1] & 0x3F)));
+				i += 2;
+			} else if (b < 0xF0) {
+				str.append((char) (((b & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F)));
+				i += 3;
+			} else {
+				str.appendCodePoint(((b & 0x07) << 18) | ((bytes[i + 1] & 0x3F) << 12) | ((bytes[i + 2] & 0x3F) << 6) | (bytes[i + 3] & 0x3F));
+				i += 4;
+			}
+		}
+	}
+
+	private static void format(Slot slot, Texts texts, StringBuilder parameters, LogBuffer line) {
+
+		appendTime(slot.time, line);
+		line.append('\t');
+
+		int code = BinaryEventLog.code(slot.id);
+		line.append(BinaryEventLog.name(code));
+		if (code != BinaryEventLog.UNKNOWN) {
+			line.append('\t');
+		}
+
+		switch(slot.id) {
+		case MouseEvent.MOUSE_MOVED:
+		case MouseEvent.MOUSE_DRAGGED:
+			appendRun(slot, line);
+			break;
+		case KeyEvent.KEY_PRESSED:
+		case KeyEvent.KEY_RELEASED:
+			line.append(texts.key(slot.keyCode));
+			break;
+		case KeyEvent.KEY_TYPED:
+			char c = slot.keyChar;
+			if (c=='\t') {
+				line.append(TAB);
+			} else {
+				line.append(c);
+			}
+			break;
+		}
+
+		line.append('\t');
+		line.append(parameters);
+
+		line.append('\t');
+		appendSource(slot, line);
+
+		line.append('\n');
+
+	}
+
 	@Override
 	public void mouseDragged(MouseEvent e) {
 		log(e);
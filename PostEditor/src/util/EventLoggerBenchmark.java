@@ -0,0 +1,132 @@
+package util;
+
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.JLabel;
+import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
+import javax.swing.text.JTextComponent;
+
+/**
+ * Measures the time taken on the Event Dispatch Thread per logged event, and the memory allocated per event
+ * both there and on the logger's consumer thread, which formats and writes the events,
+ * for a source described by a {@link LoggedComponent} and for one described by its <code>toString()</code>.
+ * The events are created before measuring, so only the logger's own allocation is counted,
+ * and they are logged in batches that fit in the ring buffer, so the consumer never holds the producer back.
+ * The consumer's count includes the compression of the <code>.gz</code> log.
+ */
+public class EventLoggerBenchmark {
+
+	@SuppressWarnings("serial")
+	private static class Field extends JTextField implements LoggedComponent {
+
+		private final byte[] context = "3\t4\tField\t".getBytes();
+
+		Field(String text) {
+			super(text);
+		}
+
+		@Override
+		public byte[] logContext() {
+			return context;
+		}
+
+		@Override
+		public JTextComponent loggedText() {
+			return this;
+		}
+
+	}
+
+	@SuppressWarnings("serial")
+	private static class Label extends JLabel {
+
+		Label(String text) {
+			super(text);
+		}
+
+		@Override
+		public String toString() {
+			return "3\t4\tField\t" + getText().length() + "\t" + getText();
+		}
+
+	}
+
+	/** Events per batch; less than the default ring buffer capacity. */
+	private static final int BATCH = 4096;
+
+	public static void main(String[] args) throws IOException, InterruptedException, InvocationTargetException {
+
+		final int events = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		File log = File.createTempFile("events", ".log.gz");
+		log.deleteOnExit();
+		final EventLogger logger = new EventLogger(log.getPath());
+
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 200) {
+			text.append("the quick brown fox jumps over the lazy dog ");
+		}
+		final Field field = new Field(text.toString());
+		final Label label = new Label(text.toString());
+
+		SwingUtilities.invokeAndWait(new Runnable() {
+			@Override
+			public void run() {
+				for (int pass=0; pass<2; pass+=1) {
+					// The first pass warms up the logger and grows its buffers
+					boolean report = (pass == 1);
+					measure("LoggedComponent", logger, field, events, report);
+					measure("toString()", logger, label, events, report);
+				}
+			}
+		});
+	}
+
+	private static void measure(String name, EventLogger logger, java.awt.Component source, int events, boolean report) {
+		MouseEvent[] moves = new MouseEvent[64];
+		KeyEvent[] keys = new KeyEvent[64];
+		for (int i=0; i<moves.length; i+=1) {
+			moves[i] = new MouseEvent(source, MouseEvent.MOUSE_MOVED, 0, 0, i, i, 0, false);
+			keys[i] = new KeyEvent(source, KeyEvent.KEY_TYPED, 0, 0, KeyEvent.VK_UNDEFINED, (char) ('a' + i % 26));
+		}
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long nanos = 0;
+		long allocated = 0;
+		awaitDrained(logger);
+		long consumerStart = threads.getThreadAllocatedBytes(logger.consumerId());
+		for (int logged=0; logged<events; logged+=BATCH) {
+			awaitDrained(logger);
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			for (int i=0; i<BATCH; i+=2) {
+				logger.mouseMoved(moves[i & 63]);
+				logger.keyTyped(keys[i & 63]);
+			}
+			nanos += System.nanoTime() - start;
+			allocated += threads.getThreadAllocatedBytes(thread) - bytes;
+		}
+		awaitDrained(logger);
+		long consumerAllocated = threads.getThreadAllocatedBytes(logger.consumerId()) - consumerStart;
+		events = (events + BATCH - 1) / BATCH * BATCH;
+
+		if (report) {
+			System.out.printf("%-16s %8.1f ns/event %8.1f bytes allocated/event %8.1f bytes allocated/event by the consumer%n",
+					name, (double) nanos / events, (double) allocated / events, (double) consumerAllocated / events);
+		}
+	}
+
+	private static void awaitDrained(EventLogger logger) {
+		while (!logger.isDrained()) {
+			LockSupport.parkNanos(100000);
+		}
+	}
+
+}
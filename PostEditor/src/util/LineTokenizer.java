@@ -0,0 +1,179 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Splits lines of a {@link MappedLineReader} into tokens and Pharaoh-style <code>i-j</code> alignment pairs
+ * by scanning the mapped bytes directly, without regular expressions or intermediate Strings.
+ * <p>
+ * Results are written into buffers owned by the tokenizer and reused from line to line,
+ * so each thread needs its own instance.
+ */
+public class LineTokenizer {
+
+	private static final byte[] SEPARATOR = "=================================".getBytes();
+
+	private int[] tokens = new int[64];
+	private int[] alignments = new int[128];
+
+	private static boolean isWhitespace(byte b) {
+		return b==' ' || b=='\t' || b=='\n' || b==0x0B || b=='\f' || b=='\r';
+	}
+
+	/**
+	 * Splits the current line of <code>reader</code> the way <code>String.split("\\s+")</code> does,
+	 * including the empty first token produced by leading whitespace,
+	 * and looks each token up in <code>vocabulary</code>.
+	 * When <code>vocabulary</code> is null the tokens are only counted.
+	 *
+	 * @return the number of tokens, or -1 if the line is blank or a document separator
+	 */
+	public int tokenize(MappedLineReader reader, Vocabulary vocabulary) {
+		long start = reader.lineStart();
+		long end = reader.lineEnd();
+
+		if (start == end) {
+			return -1;
+		}
+
+		int n = 0;
+		boolean leadingWhitespace = isWhitespace(reader.byteAt(start));
+		if (leadingWhitespace) {
+			n = add(n, vocabulary, reader, start, start);
+		}
+
+		long tokenStart = -1;
+		long lastStart = -1;
+		long lastEnd = -1;
+		for (long i=start; i<=end; i+=1) {
+			if (i == end || isWhitespace(reader.byteAt(i))) {
+				if (tokenStart >= 0) {
+					n = add(n, vocabulary, reader, tokenStart, i);
+					lastStart = tokenStart;
+					lastEnd = i;
+					tokenStart = -1;
+				}
+			} else if (tokenStart < 0) {
+				tokenStart = i;
+			}
+		}
+
+		if (n == 0 || (n == 1 && leadingWhitespace)) {
+			return -1;
+		} else if (n == 1 && isSeparator(reader, lastStart, lastEnd)) {
+			return -1;
+		} else {
+			return n;
+		}
+	}
+
+	private int add(int n, Vocabulary vocabulary, MappedLineReader reader, long start, long end) {
+		if (vocabulary != null) {
+			if (n == tokens.length) {
+				tokens = Arrays.copyOf(tokens, n * 2);
+			}
+			tokens[n] = vocabulary.id(reader, start, end);
+		}
+		return n + 1;
+	}
+
+	private static boolean isSeparator(MappedLineReader reader, long start, long end) {
+		if (end - start != SEPARATOR.length) {
+			return false;
+		}
+		for (int i=0; i<SEPARATOR.length; i+=1) {
+			if (reader.byteAt(start + i) != SEPARATOR[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Returns a copy of the token ids found by the last call to {@link #tokenize}. */
+	public int[] tokens(int n) {
+		return Arrays.copyOf(tokens, n);
+	}
+
+	/**
+	 * Parses the current line of <code>reader</code> as whitespace-separated <code>i-j</code> pairs.
+	 * A blank line or a document separator has no alignment points.
+	 *
+	 * @return the number of pairs
+	 * @throws NumberFormatException if a pair is malformed
+	 */
+	public int parseAlignments(MappedLineReader reader) {
+		long i = reader.lineStart();
+		long end = reader.lineEnd();
+
+		int n = 0;
+		while (true) {
+			while (i < end && isWhitespace(reader.byteAt(i))) {
+				i += 1;
+			}
+			if (i == end) {
+				return n;
+			}
+
+			long pairStart = i;
+			if (n == 0 && reader.byteAt(i) == '=') {
+				long separatorEnd = i;
+				while (separatorEnd < end && !isWhitespace(reader.byteAt(separatorEnd))) {
+					separatorEnd += 1;
+				}
+				if (isSeparator(reader, i, separatorEnd)) {
+					return 0;
+				}
+			}
+
+			int source = 0;
+			long digits = i;
+			while (i < end && reader.byteAt(i) >= '0' && reader.byteAt(i) <= '9') {
+				int digit = reader.byteAt(i) - '0';
+				if (source > (Integer.MAX_VALUE - digit) / 10) {
+					throw malformed(reader, pairStart);
+				}
+				source = source * 10 + digit;
+				i += 1;
+			}
+			if (i == digits || i == end || reader.byteAt(i) != '-') {
+				throw malformed(reader, pairStart);
+			}
+			i += 1;
+
+			int target = 0;
+			digits = i;
+			while (i < end && reader.byteAt(i) >= '0' && reader.byteAt(i) <= '9') {
+				int digit = reader.byteAt(i) - '0';
+				if (target > (Integer.MAX_VALUE - digit) / 10) {
+					throw malformed(reader, pairStart);
+				}
+				target = target * 10 + digit;
+				i += 1;
+			}
+			if (i == digits || (i < end && !isWhitespace(reader.byteAt(i)))) {
+				throw malformed(reader, pairStart);
+			}
+
+			if (2*n + 1 >= alignments.length) {
+				alignments = Arrays.copyOf(alignments, alignments.length * 2);
+			}
+			alignments[2*n] = source;
+			alignments[2*n+1] = target;
+			n += 1;
+		}
+	}
+
+	private static NumberFormatException malformed(MappedLineReader reader, long pairStart) {
+		long pairEnd = pairStart;
+		while (pairEnd < reader.lineEnd() && !isWhitespace(reader.byteAt(pairEnd))) {
+			pairEnd += 1;
+		}
+		return new NumberFormatException("Malformed alignment point \"" + reader.decode(pairStart, pairEnd) + "\"");
+	}
+
+	/** Returns a copy of the alignment pairs found by the last call to {@link #parseAlignments}, packed as consecutive (source, target) ints. */
+	public int[] alignments(int n) {
+		return Arrays.copyOf(alignments, 2*n);
+	}
+
+}
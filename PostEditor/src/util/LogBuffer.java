@@ -0,0 +1,128 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A reusable, growable byte buffer into which log lines are encoded as UTF-8 without creating strings.
+ * Once it has grown to the longest line, appending allocates nothing.
+ */
+class LogBuffer {
+
+	private byte[] bytes = new byte[1024];
+	private int length;
+
+	void clear() {
+		length = 0;
+	}
+
+	int length() {
+		return length;
+	}
+
+	private void ensure(int n) {
+		if (length + n > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+		}
+	}
+
+	LogBuffer append(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, bytes, length, b.length);
+		length += b.length;
+		return this;
+	}
+
+	LogBuffer append(long value) {
+		if (value < 0) {
+			if (value == Long.MIN_VALUE) {
+				return append(Long.toString(value));
+			}
+			append('-');
+			value = -value;
+		}
+		ensure(19);
+		int start = length;
+		do {
+			bytes[length++] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		for (int i=start, j=length-1; i<j; i+=1, j-=1) {
+			byte b = bytes[i];
+			bytes[i] = bytes[j];
+			bytes[j] = b;
+		}
+		return this;
+	}
+
+	/** Appends one character; an unpaired surrogate becomes '?', as the UTF-8 encoder writes it. */
+	LogBuffer append(char c) {
+		ensure(3);
+		if (c < 0x80) {
+			bytes[length++] = (byte) c;
+		} else if (c < 0x800) {
+			bytes[length++] = (byte) (0xC0 | (c >> 6));
+			bytes[length++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isSurrogate(c)) {
+			bytes[length++] = '?';
+		} else {
+			bytes[length++] = (byte) (0xE0 | (c >> 12));
+			bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			bytes[length++] = (byte) (0x80 | (c & 0x3F));
+		}
+		return this;
+	}
+
+	LogBuffer append(CharSequence s) {
+		return append(s, 0, s.length());
+	}
+
+	LogBuffer append(CharSequence s, int start, int end) {
+		for (int i=start; i<end; i+=1) {
+			char c = s.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				appendCodePoint(Character.toCodePoint(c, s.charAt(i + 1)));
+				i += 1;
+			} else {
+				append(c);
+			}
+		}
+		return this;
+	}
+
+	LogBuffer append(char[] chars, int start, int end) {
+		for (int i=start; i<end; i+=1) {
+			char c = chars[i];
+			if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+				appendCodePoint(Character.toCodePoint(c, chars[i + 1]));
+				i += 1;
+			} else {
+				append(c);
+			}
+		}
+		return this;
+	}
+
+	private void appendCodePoint(int codePoint) {
+		ensure(4);
+		bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+		bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+		bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+		bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+		out.write(bytes, 0, length);
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return new String(bytes, 0, length, "UTF-8");
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+}
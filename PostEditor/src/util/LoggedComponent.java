@@ -0,0 +1,23 @@
+package util;
+
+import javax.swing.text.JTextComponent;
+
+/**
+ * A component that describes itself to the {@link EventLogger} without building its <code>toString()</code> for every event.
+ * <p>
+ * The description in the log is the context, followed, if there is a text field, by its caret position
+ * (or its selection as <i>start</i><code>-</code><i>end</i>), a tab and its text.
+ */
+public interface LoggedComponent {
+
+	/**
+	 * The UTF-8 encoded part of the description that never changes.
+	 * It is read for every event, so the component should compute it once and keep it;
+	 * a component painted in parts may keep one for each part, and return that of the part under the mouse.
+	 */
+	byte[] logContext();
+
+	/** The text field whose caret and text complete the description, or null if the context is the whole of it. */
+	JTextComponent loggedText();
+
+}
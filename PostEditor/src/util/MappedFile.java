@@ -0,0 +1,69 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of a whole file, addressed with long offsets.
+ * Files larger than 2GB are mapped as several regions.
+ * <p>
+ * All reads are absolute, so one instance can be shared by several threads.
+ */
+public class MappedFile implements Closeable {
+
+	private static final int REGION_BITS = 30;
+	private static final long REGION_SIZE = 1L << REGION_BITS;
+	private static final long REGION_MASK = REGION_SIZE - 1;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer[] regions;
+	private final long length;
+
+	public MappedFile(String path) throws IOException {
+		this.file = new RandomAccessFile(path, "r");
+		FileChannel channel = file.getChannel();
+		this.length = channel.size();
+		int n = (int) ((length + REGION_SIZE - 1) >>> REGION_BITS);
+		this.regions = new MappedByteBuffer[n];
+		for (int i=0; i<n; i+=1) {
+			long start = ((long) i) << REGION_BITS;
+			regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, length - start));
+		}
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public byte get(long index) {
+		return regions[(int) (index >>> REGION_BITS)].get((int) (index & REGION_MASK));
+	}
+
+	/** Reads a big-endian int, as written by {@link java.io.DataOutputStream#writeInt(int)}. */
+	public int getInt(long index) {
+		int offset = (int) (index & REGION_MASK);
+		if (offset <= REGION_SIZE - 4) {
+			return regions[(int) (index >>> REGION_BITS)].getInt(offset);
+		} else {
+			return ((get(index) & 0xFF) << 24) | ((get(index+1) & 0xFF) << 16) | ((get(index+2) & 0xFF) << 8) | (get(index+3) & 0xFF);
+		}
+	}
+
+	/** Reads a big-endian long, as written by {@link java.io.DataOutputStream#writeLong(long)}. */
+	public long getLong(long index) {
+		return (((long) getInt(index)) << 32) | (getInt(index+4) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Closes the underlying file.
+	 * The mapping itself stays readable until it is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+}
@@ -0,0 +1,149 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads UTF-8 lines straight out of a memory-mapped file.
+ * <p>
+ * Line terminators are the same ones {@link java.util.Scanner#nextLine()} recognizes:
+ * <code>\r\n</code>, <code>\n</code>, <code>\r</code>, U+2028, U+2029 and U+0085.
+ */
+public class MappedLineReader implements Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final MappedFile file;
+	private final boolean ownsFile;
+	private final long length;
+
+	private long position;
+	private long lineStart;
+	private long lineEnd;
+
+	private byte[] buffer = new byte[256];
+
+	public MappedLineReader(String path) throws IOException {
+		this(new MappedFile(path), true);
+	}
+
+	/** Reads lines from a mapping owned by the caller; closing this reader leaves it open. */
+	public MappedLineReader(MappedFile file) {
+		this(file, false);
+	}
+
+	private MappedLineReader(MappedFile file, boolean ownsFile) {
+		this.file = file;
+		this.ownsFile = ownsFile;
+		this.length = file.length();
+		this.position = 0;
+	}
+
+	/**
+	 * Returns a reader over the same mapping with its own position,
+	 * so that several threads can read the file at once.
+	 * Closing the duplicate has no effect on this reader.
+	 */
+	public MappedLineReader duplicate() {
+		return new MappedLineReader(file, false);
+	}
+
+	public long length() {
+		return length;
+	}
+
+	public long position() {
+		return position;
+	}
+
+	public void seek(long position) {
+		this.position = position;
+	}
+
+	public byte byteAt(long index) {
+		return file.get(index);
+	}
+
+	public boolean hasNextLine() {
+		return position < length;
+	}
+
+	/**
+	 * Moves past the next line without decoding it.
+	 * Afterwards {@link #lineStart()} and {@link #lineEnd()} delimit the line's bytes, excluding the terminator.
+	 */
+	public boolean advance() {
+		if (position >= length) {
+			return false;
+		}
+
+		long i = position;
+		lineStart = i;
+		while (i < length) {
+			byte b = byteAt(i);
+			if (b == '\n') {
+				lineEnd = i;
+				position = i + 1;
+				return true;
+			} else if (b == '\r') {
+				lineEnd = i;
+				position = (i+1 < length && byteAt(i+1) == '\n') ? i + 2 : i + 1;
+				return true;
+			} else if (b == (byte) 0xC2 && i+1 < length && byteAt(i+1) == (byte) 0x85) {
+				lineEnd = i;
+				position = i + 2;
+				return true;
+			} else if (b == (byte) 0xE2 && i+2 < length && byteAt(i+1) == (byte) 0x80 && (byteAt(i+2) == (byte) 0xA8 || byteAt(i+2) == (byte) 0xA9)) {
+				lineEnd = i;
+				position = i + 3;
+				return true;
+			}
+			i += 1;
+		}
+
+		lineEnd = length;
+		position = length;
+		return true;
+	}
+
+	public long lineStart() {
+		return lineStart;
+	}
+
+	public long lineEnd() {
+		return lineEnd;
+	}
+
+	/** Decodes the bytes of the line most recently passed by {@link #advance()}. */
+	public String currentLine() {
+		return decode(lineStart, lineEnd);
+	}
+
+	public String nextLine() {
+		if (!advance()) {
+			throw new NoSuchElementException("No line found");
+		}
+		return currentLine();
+	}
+
+	public String decode(long start, long end) {
+		int n = (int) (end - start);
+		if (n > buffer.length) {
+			buffer = new byte[Math.max(n, buffer.length * 2)];
+		}
+		for (int i=0; i<n; i+=1) {
+			buffer[i] = byteAt(start + i);
+		}
+		return new String(buffer, 0, n, UTF8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (ownsFile) {
+			file.close();
+		}
+	}
+
+}
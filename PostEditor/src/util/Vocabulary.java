@@ -0,0 +1,260 @@
+package util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Assigns a dense integer id to every distinct token,
+ * so that repeated tokens are stored once however often they occur.
+ * <p>
+ * Tokens are keyed by their UTF-8 bytes in an open-addressing hash table,
+ * so they can be looked up straight from a {@link MappedLineReader} without creating a String.
+ * The String form of a token is only decoded when {@link #token(int)} asks for it.
+ * <p>
+ * A vocabulary saved with {@link #write(DataOutput)} can be reopened with {@link #map(MappedFile, long)},
+ * which reads tokens out of the mapping on demand and only builds the hash table if a lookup needs it.
+ * <p>
+ * Lookups may run concurrently; new ids are assigned under a lock.
+ */
+public class Vocabulary {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Slot <code>i</code> holds 1 + the id of the token stored there, or 0 if empty. */
+	private volatile AtomicIntegerArray slots;
+	private volatile byte[][] bytes;
+	private volatile String[] strings;
+	private int size;
+
+	private final MappedFile mapping;
+	private final long mappingOffsets;
+	private final long mappingTokens;
+	private volatile boolean indexed;
+
+	public Vocabulary() {
+		this.slots = new AtomicIntegerArray(2048);
+		this.bytes = new byte[1024][];
+		this.strings = new String[1024];
+		this.size = 0;
+		this.mapping = null;
+		this.mappingOffsets = 0;
+		this.mappingTokens = 0;
+		this.indexed = true;
+	}
+
+	private Vocabulary(MappedFile mapping, long offset) {
+		int size = mapping.getInt(offset);
+		int capacity = Math.max(1024, Integer.highestOneBit(Math.max(1, size)) * 2);
+		this.slots = new AtomicIntegerArray(2);
+		this.bytes = new byte[capacity][];
+		this.strings = new String[capacity];
+		this.size = size;
+		this.mapping = mapping;
+		this.mappingOffsets = offset + 4;
+		this.mappingTokens = offset + 4 + 4L * (size + 1);
+		this.indexed = false;
+	}
+
+	/** Opens a vocabulary that {@link #write(DataOutput)} saved at <code>offset</code> of <code>mapping</code>. */
+	public static Vocabulary map(MappedFile mapping, long offset) {
+		return new Vocabulary(mapping, offset);
+	}
+
+	/**
+	 * Writes the vocabulary as its size, the start offset of each token plus the end offset of the last one,
+	 * and then the UTF-8 bytes of all tokens.
+	 *
+	 * @return the number of bytes written
+	 */
+	public synchronized long write(DataOutput out) throws IOException {
+		ensureIndexed();
+		out.writeInt(size);
+		int offset = 0;
+		for (int id=0; id<size; id+=1) {
+			out.writeInt(offset);
+			offset += bytes[id].length;
+		}
+		out.writeInt(offset);
+		for (int id=0; id<size; id+=1) {
+			out.write(bytes[id]);
+		}
+		return 4 + 4L * (size + 1) + offset;
+	}
+
+	private byte[] mappedBytes(int id) {
+		int start = mapping.getInt(mappingOffsets + 4L * id);
+		int end = mapping.getInt(mappingOffsets + 4L * (id + 1));
+		byte[] token = new byte[end - start];
+		for (int i=0; i<token.length; i+=1) {
+			token[i] = mapping.get(mappingTokens + start + i);
+		}
+		return token;
+	}
+
+	/** Copies the tokens of a mapped vocabulary into the hash table the first time a lookup needs it. */
+	private void ensureIndexed() {
+		if (!indexed) {
+			synchronized (this) {
+				if (!indexed) {
+					AtomicIntegerArray table = new AtomicIntegerArray(Math.max(2048, Integer.highestOneBit(Math.max(1, size)) * 4));
+					for (int id=0; id<size; id+=1) {
+						bytes[id] = mappedBytes(id);
+						insert(table, hash(bytes[id], 0, bytes[id].length), id);
+					}
+					slots = table;
+					indexed = true;
+				}
+			}
+		}
+	}
+
+	/** Returns the id of <code>token</code>, assigning the next free id if it has not been seen before. */
+	public int id(String token) {
+		ensureIndexed();
+		byte[] key = token.getBytes(UTF8);
+		int hash = hash(key, 0, key.length);
+		int id = find(slots, hash, key, 0, key.length);
+		if (id >= 0) {
+			return id;
+		}
+		synchronized (this) {
+			id = find(slots, hash, key, 0, key.length);
+			return (id >= 0) ? id : add(hash, key, token);
+		}
+	}
+
+	/**
+	 * Returns the id of the token made up of bytes <code>[start, end)</code> of <code>reader</code>,
+	 * assigning the next free id if it has not been seen before.
+	 * Only a token that is new to the vocabulary causes any allocation.
+	 */
+	public int id(MappedLineReader reader, long start, long end) {
+		ensureIndexed();
+		int hash = hash(reader, start, end);
+		int id = find(slots, hash, reader, start, end);
+		if (id >= 0) {
+			return id;
+		}
+		synchronized (this) {
+			id = find(slots, hash, reader, start, end);
+			if (id >= 0) {
+				return id;
+			}
+			byte[] key = new byte[(int) (end - start)];
+			for (int i=0; i<key.length; i+=1) {
+				key[i] = reader.byteAt(start + i);
+			}
+			return add(hash, key, null);
+		}
+	}
+
+	public String token(int id) {
+		String[] strings = this.strings;
+		String token = strings[id];
+		if (token == null) {
+			byte[] bytes = this.bytes[id];
+			token = new String((bytes != null) ? bytes : mappedBytes(id), UTF8);
+			strings[id] = token;
+		}
+		return token;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private static int hash(byte[] key, int start, int end) {
+		int hash = 0x811C9DC5;
+		for (int i=start; i<end; i+=1) {
+			hash = (hash ^ (key[i] & 0xFF)) * 0x01000193;
+		}
+		return hash;
+	}
+
+	private static int hash(MappedLineReader reader, long start, long end) {
+		int hash = 0x811C9DC5;
+		for (long i=start; i<end; i+=1) {
+			hash = (hash ^ (reader.byteAt(i) & 0xFF)) * 0x01000193;
+		}
+		return hash;
+	}
+
+	private int find(AtomicIntegerArray slots, int hash, byte[] key, int start, int end) {
+		int mask = slots.length() - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = slots.get(slot);
+			if (entry == 0) {
+				return -1;
+			}
+			byte[] candidate = bytes[entry - 1];
+			if (candidate.length == end - start) {
+				int i = 0;
+				while (i < candidate.length && candidate[i] == key[start + i]) {
+					i += 1;
+				}
+				if (i == candidate.length) {
+					return entry - 1;
+				}
+			}
+		}
+	}
+
+	private int find(AtomicIntegerArray slots, int hash, MappedLineReader reader, long start, long end) {
+		int mask = slots.length() - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int entry = slots.get(slot);
+			if (entry == 0) {
+				return -1;
+			}
+			byte[] candidate = bytes[entry - 1];
+			if (candidate.length == end - start) {
+				int i = 0;
+				while (i < candidate.length && candidate[i] == reader.byteAt(start + i)) {
+					i += 1;
+				}
+				if (i == candidate.length) {
+					return entry - 1;
+				}
+			}
+		}
+	}
+
+	/** Must be called while holding the lock on this vocabulary. */
+	private int add(int hash, byte[] key, String token) {
+		int id = size;
+		if (id == bytes.length) {
+			byte[][] grownBytes = new byte[id * 2][];
+			System.arraycopy(bytes, 0, grownBytes, 0, id);
+			String[] grownStrings = new String[id * 2];
+			System.arraycopy(strings, 0, grownStrings, 0, id);
+			bytes = grownBytes;
+			strings = grownStrings;
+		}
+		bytes[id] = key;
+		strings[id] = token;
+		size += 1;
+
+		if (size * 2 > slots.length()) {
+			AtomicIntegerArray grown = new AtomicIntegerArray(slots.length() * 2);
+			for (int i=0; i<size; i+=1) {
+				insert(grown, hash(bytes[i], 0, bytes[i].length), i);
+			}
+			slots = grown;
+		} else {
+			insert(slots, hash, id);
+		}
+		return id;
+	}
+
+	private static void insert(AtomicIntegerArray slots, int hash, int id) {
+		int mask = slots.length() - 1;
+		int slot = hash & mask;
+		while (slots.get(slot) != 0) {
+			slot = (slot + 1) & mask;
+		}
+		slots.set(slot, id + 1);
+	}
+
+}